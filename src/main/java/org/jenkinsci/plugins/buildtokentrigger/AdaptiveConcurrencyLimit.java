@@ -0,0 +1,405 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nonnull;
+
+/**
+ * An additive increase / multiplicative decrease limit on the number of concurrent triggers against a remote Jenkins.
+ * <p>
+ * The limit grows by roughly one for every limit's worth of triggers that complete without the latency rising above
+ * {@link #TOLERANCE} times the baseline latency. It is cut by {@link #BACKOFF} when latency rises and halved when the
+ * remote reports that it is overloaded, at most once per window of completions, so that a fan-out settles at
+ * the highest rate the remote can sustain.
+ * <p>
+ * Work submitted with {@link #execute(Executor, Task)} is queued until a slot is free and only then handed to the
+ * executor, so that no executor thread is ever parked waiting for a slow remote. Waiting uses a {@link ReentrantLock}
+ * rather than a monitor so that virtual threads waiting in {@link #acquire()} do not pin their carrier thread.
+ */
+final class AdaptiveConcurrencyLimit {
+
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveConcurrencyLimit.class.getName());
+
+    /**
+     * The initial limit for a remote Jenkins.
+     */
+    static final int INITIAL_LIMIT =
+            Math.max(1, Integer.getInteger(AdaptiveConcurrencyLimit.class.getName() + ".initialLimit", 10));
+
+    /**
+     * The maximum limit for a remote Jenkins.
+     */
+    static final int MAX_LIMIT =
+            Math.max(INITIAL_LIMIT, Integer.getInteger(AdaptiveConcurrencyLimit.class.getName() + ".maxLimit", 200));
+
+    /**
+     * How much slower than the baseline a trigger may be before it counts as the remote slowing down.
+     */
+    static final double TOLERANCE = 2.0;
+
+    /**
+     * The factor applied to the limit when latency rises.
+     */
+    static final double BACKOFF = 0.9;
+
+    /**
+     * The number of samples over which the minimum latency is measured to give the next baseline, so that the
+     * baseline can follow a remote that has become permanently slower or faster.
+     */
+    static final int BASELINE_WINDOW = 1000;
+
+    /**
+     * The latency to report when the trigger should not be scored, e.g. the request was not sent, was interrupted or
+     * did not reach the build queue.
+     */
+    static final long NO_SAMPLE = -1L;
+
+    private static final ConcurrentMap<String, AdaptiveConcurrencyLimit> limits = new ConcurrentHashMap<>();
+
+    private final String jenkinsUrl;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit = INITIAL_LIMIT;
+    private int inFlight;
+    /**
+     * The minimum latency over the previous window.
+     */
+    private long baselineNanos = Long.MAX_VALUE;
+    /**
+     * The minimum latency so far in the current window.
+     */
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int samples;
+    /**
+     * The number of completions since the limit was last decreased.
+     */
+    private int sinceDecrease = Integer.MAX_VALUE;
+    /**
+     * The number of completions to ignore after a decrease before the limit may be decreased again.
+     */
+    private int holdoff;
+    /**
+     * The work waiting for a slot, in submission order.
+     */
+    private final Queue<Pending> pending = new ArrayDeque<>();
+
+    AdaptiveConcurrencyLimit(String jenkinsUrl) {
+        this.jenkinsUrl = jenkinsUrl;
+    }
+
+    /**
+     * Returns the limit for a remote Jenkins.
+     *
+     * @param jenkinsUrl the normalized Jenkins URL.
+     * @return the limit.
+     */
+    @Nonnull
+    static AdaptiveConcurrencyLimit forUrl(@Nonnull String jenkinsUrl) {
+        AdaptiveConcurrencyLimit limit = limits.get(jenkinsUrl);
+        if (limit == null) {
+            AdaptiveConcurrencyLimit created = new AdaptiveConcurrencyLimit(jenkinsUrl);
+            limit = limits.putIfAbsent(jenkinsUrl, created);
+            if (limit == null) {
+                limit = created;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Returns the limits for each remote Jenkins that has been triggered.
+     *
+     * @return the limits keyed by normalized Jenkins URL.
+     */
+    @Nonnull
+    static Map<String, AdaptiveConcurrencyLimit> all() {
+        return new TreeMap<>(limits);
+    }
+
+    /**
+     * Returns the normalized Jenkins URL that this limit applies to.
+     *
+     * @return the normalized Jenkins URL that this limit applies to.
+     */
+    String getJenkinsUrl() {
+        return jenkinsUrl;
+    }
+
+    /**
+     * Returns the current limit.
+     *
+     * @return the current limit.
+     */
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of triggers currently in flight.
+     *
+     * @return the number of triggers currently in flight.
+     */
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of triggers waiting for a slot.
+     *
+     * @return the number of triggers waiting for a slot.
+     */
+    int getQueued() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the task on the executor once a slot is free, without blocking the caller or any executor thread while
+     * waiting. The slot is returned when the task completes if the task has not already returned it.
+     *
+     * @param executor the executor to run the task on.
+     * @param task     the task.
+     * @return {@code true} if a slot was free and the task was handed to the executor, {@code false} if the task was
+     * queued.
+     */
+    boolean execute(@Nonnull Executor executor, @Nonnull final Task task) {
+        Pending work = new Pending(executor, task);
+        lock.lock();
+        try {
+            if (!pending.isEmpty() || inFlight >= (int) limit) {
+                pending.add(work);
+                return false;
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+        work.start();
+        return true;
+    }
+
+    /**
+     * Takes a slot if one is free.
+     *
+     * @return {@code true} if a slot was taken and must be {@link #release(long, boolean)}d.
+     */
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a slot, waiting for one to become free.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                available.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a slot and adjusts the limit based on how the trigger went.
+     *
+     * @param latencyNanos how long the trigger took or {@link #NO_SAMPLE} if the trigger should not be scored.
+     * @param overloaded   {@code true} if the remote failed in a way that indicates it is overloaded.
+     */
+    void release(long latencyNanos, boolean overloaded) {
+        int before;
+        int after;
+        List<Pending> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            inFlight--;
+            before = (int) limit;
+            if (sinceDecrease < Integer.MAX_VALUE) {
+                sinceDecrease++;
+            }
+            // back off at most once per window: the requests that were already in flight when the limit was last
+            // decreased, or a limit's worth of requests, must complete first so that a burst of failures from
+            // requests that were all in flight together counts as a single signal
+            boolean mayDecrease = sinceDecrease > holdoff;
+            if (overloaded) {
+                if (mayDecrease) {
+                    decrease(0.5);
+                }
+            } else if (latencyNanos >= 0) {
+                windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+                if (++samples >= BASELINE_WINDOW) {
+                    baselineNanos = windowMinNanos;
+                    windowMinNanos = Long.MAX_VALUE;
+                    samples = 0;
+                }
+                long baseline = Math.min(baselineNanos, windowMinNanos);
+                if (latencyNanos > baseline * TOLERANCE) {
+                    if (mayDecrease) {
+                        decrease(BACKOFF);
+                    }
+                } else if (inFlight + 1 >= before / 2) {
+                    // only grow when the current limit is actually being used
+                    limit = Math.min(MAX_LIMIT, limit + 1.0 / limit);
+                }
+            }
+            after = (int) limit;
+            while (inFlight < after && !pending.isEmpty()) {
+                inFlight++;
+                ready.add(pending.remove());
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (after != before) {
+            LOGGER.log(Level.FINE, "Concurrency limit for {0} changed from {1} to {2}",
+                    new Object[]{jenkinsUrl, before, after});
+        }
+        for (Pending work : ready) {
+            work.start();
+        }
+    }
+
+    private void decrease(double factor) {
+        limit = Math.max(1.0, limit * factor);
+        sinceDecrease = 0;
+        holdoff = Math.max(inFlight, (int) limit);
+    }
+
+    /**
+     * Work that runs while holding a slot.
+     */
+    interface Task {
+        /**
+         * Runs the work.
+         *
+         * @param slot the slot, which should be released with the outcome of the trigger.
+         */
+        void run(@Nonnull Slot slot);
+    }
+
+    /**
+     * A slot that has been taken. Only the first release counts.
+     */
+    final class Slot {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Constructor for a slot that has already been taken with {@link AdaptiveConcurrencyLimit#tryAcquire()} or
+         * {@link AdaptiveConcurrencyLimit#acquire()}.
+         */
+        Slot() {
+        }
+
+        /**
+         * Returns the slot and adjusts the limit based on how the trigger went.
+         *
+         * @param latencyNanos how long the trigger took or {@link AdaptiveConcurrencyLimit#NO_SAMPLE} if the trigger
+         *                     should not be scored.
+         * @param overloaded   {@code true} if the remote failed in a way that indicates it is overloaded.
+         */
+        void release(long latencyNanos, boolean overloaded) {
+            if (released.compareAndSet(false, true)) {
+                AdaptiveConcurrencyLimit.this.release(latencyNanos, overloaded);
+            }
+        }
+    }
+
+    /**
+     * A task waiting for a slot.
+     */
+    private final class Pending implements Runnable {
+        private final Executor executor;
+        private final Task task;
+        private final Slot slot = new Slot();
+
+        Pending(Executor executor, Task task) {
+            this.executor = executor;
+            this.task = task;
+        }
+
+        /**
+         * Hands the task to the executor, the slot having been taken.
+         */
+        void start() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                LOGGER.log(Level.WARNING, "Could not run trigger against " + jenkinsUrl, e);
+                slot.release(NO_SAMPLE, false);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run(slot);
+            } finally {
+                slot.release(NO_SAMPLE, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,773 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.steps.MissingContextVariableException;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Pipeline step to trigger every job listed in a manifest file in the workspace.
+ * <p>
+ * The manifest is streamed one line at a time and at most {@link #getParallelism()} triggers are in flight at once,
+ * with results appended to the output file as each trigger completes, so memory use does not depend on the size of
+ * the manifest.
+ */
+public class BulkTriggerStep extends Step implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final String manifest;
+    private final String output;
+    private final String credentialsId;
+    private String jenkinsUrl;
+    private String format;
+    private int parallelism = DescriptorImpl.DEFAULT_PARALLELISM;
+    private boolean ignoreMissing;
+    private boolean ignoreUnqueued;
+    private boolean signed;
+
+    @DataBoundConstructor
+    public BulkTriggerStep(String manifest, String output, String credentialsId) {
+        this.manifest = manifest;
+        this.output = output;
+        this.credentialsId = credentialsId;
+    }
+
+    public String getManifest() {
+        return manifest;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getJenkinsUrl() {
+        return jenkinsUrl;
+    }
+
+    @DataBoundSetter
+    public void setJenkinsUrl(String jenkinsUrl) {
+        this.jenkinsUrl = TriggerCredentialsImpl.normalizeUrl(jenkinsUrl);
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    @DataBoundSetter
+    public void setFormat(String format) {
+        this.format = StringUtils.isBlank(format) ? null : format.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public boolean isIgnoreMissing() {
+        return ignoreMissing;
+    }
+
+    @DataBoundSetter
+    public void setIgnoreMissing(boolean ignoreMissing) {
+        this.ignoreMissing = ignoreMissing;
+    }
+
+    public boolean isIgnoreUnqueued() {
+        return ignoreUnqueued;
+    }
+
+    @DataBoundSetter
+    public void setIgnoreUnqueued(boolean ignoreUnqueued) {
+        this.ignoreUnqueued = ignoreUnqueued;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    @DataBoundSetter
+    public void setSigned(boolean signed) {
+        this.signed = signed;
+    }
+
+    /**
+     * Returns {@code true} if the manifest is in CSV format, {@code false} if it is in JSON lines format.
+     *
+     * @return {@code true} if the manifest is in CSV format.
+     * @throws ManifestException if the format is not one of {@link DescriptorImpl#FORMATS}.
+     */
+    boolean isCsv() {
+        if (format == null) {
+            return StringUtils.endsWithIgnoreCase(manifest, ".csv");
+        }
+        if (!DescriptorImpl.FORMATS.contains(format)) {
+            throw new ManifestException("Unknown manifest format '" + format + "', expected one of "
+                    + StringUtils.join(DescriptorImpl.FORMATS, ", "), null);
+        }
+        return "csv".equals(format);
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(this, context);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        static final int DEFAULT_PARALLELISM = 8;
+
+        /**
+         * The supported manifest formats.
+         */
+        static final List<String> FORMATS = Collections.unmodifiableList(Arrays.asList("csv", "jsonl"));
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Collections.unmodifiableSet(
+                    new HashSet<>(Arrays.asList(TaskListener.class, Run.class, FilePath.class)));
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "buildTokenTriggerBulk";
+        }
+
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return Messages.BulkTriggerStep_DisplayName();
+        }
+
+        public FormValidation doCheckJenkinsUrl(@AncestorInPath Item owner,
+                                                @QueryParameter String value)
+                throws IOException {
+            return triggerDescriptor().doCheckJenkinsUrl(owner, value);
+        }
+
+        public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item owner,
+                                                     @QueryParameter("jenkinsUrl") String jenkinsUrl,
+                                                     @QueryParameter String value) {
+            return triggerDescriptor().doFillCredentialsIdItems(owner, jenkinsUrl, value);
+        }
+
+        public ListBoxModel doFillFormatItems() {
+            return new ListBoxModel()
+                    .add("Detect from file extension", "")
+                    .add("CSV", "csv")
+                    .add("JSON lines", "jsonl");
+        }
+
+        public FormValidation doCheckFormat(@QueryParameter String value) {
+            if (StringUtils.isBlank(value) || FORMATS.contains(value.trim().toLowerCase(Locale.ENGLISH))) {
+                return FormValidation.ok();
+            }
+            return FormValidation.error("Unknown format, expected one of " + StringUtils.join(FORMATS, ", "));
+        }
+
+        public FormValidation doCheckManifest(@QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.error("Must specify the manifest file");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckOutput(@QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.error("Must specify the output file");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckParallelism(@QueryParameter String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.ok();
+            }
+            try {
+                if (Integer.parseInt(value) < 1) {
+                    return FormValidation.error("Parallelism must be at least 1");
+                }
+                return FormValidation.ok();
+            } catch (NumberFormatException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
+        private static TriggerStep.DescriptorImpl triggerDescriptor() {
+            return Jenkins.getInstance().getDescriptorByType(TriggerStep.DescriptorImpl.class);
+        }
+    }
+
+    /**
+     * Returns the entries of the manifest, reading it one line at a time.
+     *
+     * @param reader the manifest.
+     * @return the entries of the manifest.
+     */
+    Iterator<TriggerStep> entries(BufferedReader reader) {
+        return isCsv() ? new CsvIterator(this, reader) : new JsonIterator(this, reader);
+    }
+
+    private TriggerStep newEntry(String job, Map<String, String> parameters, Integer delay) {
+        TriggerStep entry = new TriggerStep(jenkinsUrl, job, credentialsId, parameters, delay);
+        entry.setIgnoreMissing(ignoreMissing);
+        entry.setIgnoreUnqueued(ignoreUnqueued);
+        entry.setSigned(signed);
+        return entry;
+    }
+
+    /**
+     * Reads the manifest and dispatches the triggers.
+     */
+    public static class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+        /**
+         * Runs the manifest readers, kept separate from {@link TriggerExecutors#get()} as they block waiting for
+         * free dispatcher slots.
+         */
+        private static final ExecutorService readers = Executors.newCachedThreadPool(
+                new NamingThreadFactory(new DaemonThreadFactory(), "Build Token Bulk Trigger"));
+        @SuppressFBWarnings(value = "SE_TRANSIENT_FIELD_NOT_RESTORED", justification = "Only used when starting.")
+        private transient final BulkTriggerStep step;
+        private transient volatile Future<?> task;
+        private transient volatile Dispatcher dispatcher;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        Execution(BulkTriggerStep step, StepContext context) {
+            super(context);
+            this.step = step;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            final String jenkinsUrl = TriggerStep.Execution.resolveJenkinsUrl(step.jenkinsUrl);
+            final Dispatcher dispatcher = new Dispatcher(step.parallelism, TriggerExecutors.get(),
+                    AdaptiveConcurrencyLimit.forUrl(jenkinsUrl));
+            this.dispatcher = dispatcher;
+            task = readers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Integer result = Execution.this.run(jenkinsUrl, dispatcher);
+                        if (!dispatcher.isCancelled() && done.compareAndSet(false, true)) {
+                            getContext().onSuccess(result);
+                        }
+                    } catch (Throwable t) {
+                        if (!dispatcher.isCancelled() && done.compareAndSet(false, true)) {
+                            getContext().onFailure(t);
+                        }
+                    }
+                }
+            });
+            return false;
+        }
+
+        @Override
+        public void stop(@Nonnull Throwable cause) throws Exception {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            Dispatcher dispatcher = this.dispatcher;
+            if (dispatcher != null) {
+                dispatcher.cancel();
+            }
+            Future<?> task = this.task;
+            if (task != null) {
+                task.cancel(true);
+            }
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            getContext().onFailure(new Exception("Resume after a restart not supported"));
+        }
+
+        private Integer run(final String jenkinsUrl, final Dispatcher dispatcher) throws Exception {
+            final Run<?, ?> run = getContext().get(Run.class);
+            if (run == null) {
+                throw new MissingContextVariableException(Run.class);
+            }
+            FilePath workspace = getContext().get(FilePath.class);
+            if (workspace == null) {
+                throw new MissingContextVariableException(FilePath.class);
+            }
+            final TaskListener listener = getContext().get(TaskListener.class);
+            assert listener != null;
+            try {
+                // fail on an unknown format before anything is written
+                step.isCsv();
+            } catch (ManifestException e) {
+                throw new AbortException(e.getMessage());
+            }
+            FilePath manifest = workspace.child(step.manifest);
+            if (!manifest.exists()) {
+                throw new AbortException("Manifest " + manifest.getRemote() + " does not exist");
+            }
+            // once per run rather than once per line, as the lookup visits every credential in scope
+            final TriggerCredentials credentials =
+                    TriggerStep.Execution.resolveCredentials(step.credentialsId, jenkinsUrl, run);
+            FilePath output = workspace.child(step.output);
+            listener.getLogger().printf("[%tc] Triggering jobs listed in %s with parallelism %d%n",
+                    new Date(), step.manifest, step.parallelism);
+            final AtomicInteger triggered = new AtomicInteger();
+            final AtomicInteger failed = new AtomicInteger();
+            // a lock rather than a monitor as the remote write must not pin a virtual thread's carrier
+            final ReentrantLock writeLock = new ReentrantLock();
+            int count;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(manifest.read(), StandardCharsets.UTF_8));
+                 final Writer writer = new OutputStreamWriter(output.write(), StandardCharsets.UTF_8)) {
+                count = dispatcher.dispatch(step.entries(reader), new Dispatcher.Handler<TriggerStep>() {
+                    @Override
+                    public void handle(int index, TriggerStep entry, AdaptiveConcurrencyLimit.Slot slot) {
+                        JSONObject result = new JSONObject();
+                        result.put("index", index);
+                        result.put("job", entry.getJob());
+                        try {
+                            result.put("location",
+                                    TriggerStep.Execution.trigger(entry, jenkinsUrl, credentials, listener, slot));
+                            triggered.incrementAndGet();
+                        } catch (Exception e) {
+                            if (dispatcher.isCancelled()) {
+                                return;
+                            }
+                            result.put("error", StringUtils.defaultString(e.getMessage(), e.getClass().getName()));
+                            failed.incrementAndGet();
+                        }
+                        try {
+                            writeLock.lock();
+                            try {
+                                writer.write(result.toString());
+                                writer.write('\n');
+                                writer.flush();
+                            } finally {
+                                writeLock.unlock();
+                            }
+                        } catch (IOException e) {
+                            if (!dispatcher.isCancelled()) {
+                                listener.error("Could not record result for " + entry.getJob())
+                                        .println(e.getMessage());
+                            }
+                        }
+                    }
+                });
+            } catch (ManifestException e) {
+                throw new AbortException(e.getMessage());
+            }
+            if (dispatcher.isCancelled()) {
+                return triggered.get();
+            }
+            listener.getLogger().printf("[%tc] Triggered %d of %d jobs, results in %s%n",
+                    new Date(), triggered.get(), count, step.output);
+            if (failed.get() > 0) {
+                throw new AbortException(failed.get() + " of " + count + " triggers failed, see " + step.output);
+            }
+            return triggered.get();
+        }
+    }
+
+    /**
+     * Hands entries to an executor with at most {@code parallelism} in flight. An entry is only read once a slot is
+     * free, so the reader never gets ahead of the triggers. When there is an {@link AdaptiveConcurrencyLimit} an
+     * entry is queued on it until the remote has a free slot, so entries waiting for a slow remote do not hold
+     * executor threads.
+     */
+    static final class Dispatcher {
+
+        /**
+         * Processes one entry.
+         *
+         * @param <T> the type of entry.
+         */
+        interface Handler<T> {
+            /**
+             * Processes one entry.
+             *
+             * @param index the one-based index of the entry.
+             * @param entry the entry.
+             * @param slot  the slot held for the entry or {@code null} if there is no limit.
+             */
+            void handle(int index, T entry, @CheckForNull AdaptiveConcurrencyLimit.Slot slot);
+        }
+
+        private final int parallelism;
+        private final Semaphore slots;
+        private final Executor executor;
+        @CheckForNull
+        private final AdaptiveConcurrencyLimit limit;
+        private final Set<Thread> running = new HashSet<>();
+        private volatile boolean cancelled;
+
+        Dispatcher(int parallelism, Executor executor, @CheckForNull AdaptiveConcurrencyLimit limit) {
+            this.parallelism = parallelism;
+            this.slots = new Semaphore(parallelism);
+            this.executor = executor;
+            this.limit = limit;
+        }
+
+        /**
+         * Dispatches all the entries and waits for them to complete, unless cancelled.
+         *
+         * @param entries the entries.
+         * @param handler the handler.
+         * @param <T>     the type of entry.
+         * @return the number of entries dispatched.
+         * @throws InterruptedException if interrupted while waiting for a free slot.
+         */
+        <T> int dispatch(Iterator<T> entries, final Handler<T> handler) throws InterruptedException {
+            int count = 0;
+            try {
+                while (!cancelled) {
+                    // backpressure: do not read further until there is a free slot
+                    slots.acquire();
+                    boolean submitted = false;
+                    try {
+                        if (cancelled || !entries.hasNext()) {
+                            break;
+                        }
+                        final T entry = entries.next();
+                        final int index = ++count;
+                        if (limit == null) {
+                            executor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    handle(handler, index, entry, null);
+                                }
+                            });
+                        } else {
+                            limit.execute(executor, new AdaptiveConcurrencyLimit.Task() {
+                                @Override
+                                public void run(@Nonnull AdaptiveConcurrencyLimit.Slot slot) {
+                                    handle(handler, index, entry, slot);
+                                }
+                            });
+                        }
+                        submitted = true;
+                    } finally {
+                        if (!submitted) {
+                            slots.release();
+                        }
+                    }
+                }
+            } finally {
+                if (!cancelled) {
+                    // wait for the in-flight entries
+                    slots.acquireUninterruptibly(parallelism);
+                    slots.release(parallelism);
+                }
+            }
+            return count;
+        }
+
+        private <T> void handle(Handler<T> handler, int index, T entry,
+                                @CheckForNull AdaptiveConcurrencyLimit.Slot slot) {
+            Thread thread = Thread.currentThread();
+            synchronized (running) {
+                running.add(thread);
+            }
+            try {
+                // check again as the entry may have been queued when the dispatch was cancelled
+                if (!cancelled) {
+                    handler.handle(index, entry, slot);
+                }
+            } finally {
+                synchronized (running) {
+                    running.remove(thread);
+                }
+                slots.release();
+            }
+        }
+
+        /**
+         * Stops dispatching, skips the entries that have not started and interrupts those in flight.
+         */
+        void cancel() {
+            cancelled = true;
+            synchronized (running) {
+                for (Thread thread : running) {
+                    thread.interrupt();
+                }
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Base class for reading the manifest one entry at a time.
+     */
+    abstract static class ManifestIterator implements Iterator<TriggerStep> {
+        final BulkTriggerStep step;
+        private final BufferedReader reader;
+        private int lineNumber;
+        private TriggerStep next;
+
+        ManifestIterator(BulkTriggerStep step, BufferedReader reader) {
+            this.step = step;
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (IOException e) {
+                    throw new ManifestException("Could not read manifest: " + e.getMessage(), e);
+                }
+                if (line == null) {
+                    return false;
+                }
+                if (lineNumber++ == 0) {
+                    line = StringUtils.removeStart(line, "\uFEFF");
+                }
+                if (StringUtils.isBlank(line) || line.startsWith("#")) {
+                    continue;
+                }
+                next = parse(line, lineNumber);
+            }
+            return true;
+        }
+
+        @Override
+        public TriggerStep next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            TriggerStep result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Parses a non-blank line of the manifest.
+         *
+         * @param line       the line.
+         * @param lineNumber the line number.
+         * @return the entry or {@code null} to skip the line.
+         */
+        abstract TriggerStep parse(String line, int lineNumber);
+    }
+
+    /**
+     * Reads a JSON lines manifest, each line being an object with a {@code job} and optional {@code parameters}
+     * object and {@code delay}.
+     */
+    static class JsonIterator extends ManifestIterator {
+        JsonIterator(BulkTriggerStep step, BufferedReader reader) {
+            super(step, reader);
+        }
+
+        @Override
+        TriggerStep parse(String line, int lineNumber) {
+            try {
+                JSONObject json = JSONObject.fromObject(line);
+                String job = json.optString("job");
+                if (StringUtils.isBlank(job)) {
+                    throw new ManifestException("Manifest line " + lineNumber + " does not specify a job", null);
+                }
+                Map<String, String> parameters = new LinkedHashMap<>();
+                JSONObject p = json.optJSONObject("parameters");
+                if (p != null && !p.isNullObject()) {
+                    for (Object key : p.keySet()) {
+                        parameters.put(key.toString(), p.getString(key.toString()));
+                    }
+                }
+                Integer delay = json.has("delay") ? json.getInt("delay") : null;
+                return step.newEntry(job, parameters, delay);
+            } catch (JSONException e) {
+                throw new ManifestException("Manifest line " + lineNumber + " is not valid: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Reads a CSV manifest. The first line names the columns, one of which must be {@code job}, an optional
+     * {@code delay} column gives the quiet period and all other columns are build parameters. Columns without a name,
+     * such as from a trailing comma, are ignored.
+     */
+    static class CsvIterator extends ManifestIterator {
+        private List<String> header;
+
+        CsvIterator(BulkTriggerStep step, BufferedReader reader) {
+            super(step, reader);
+        }
+
+        @Override
+        TriggerStep parse(String line, int lineNumber) {
+            List<String> cells = splitCsv(line, lineNumber);
+            if (header == null) {
+                List<String> names = new ArrayList<>(cells.size());
+                for (String cell : cells) {
+                    names.add(cell.trim());
+                }
+                if (!names.contains("job")) {
+                    throw new ManifestException("Manifest header does not have a job column", null);
+                }
+                header = names;
+                return null;
+            }
+            String job = null;
+            Integer delay = null;
+            Map<String, String> parameters = new LinkedHashMap<>();
+            for (int i = 0; i < header.size() && i < cells.size(); i++) {
+                String name = header.get(i);
+                String value = cells.get(i);
+                if ("job".equals(name)) {
+                    job = value.trim();
+                } else if ("delay".equals(name)) {
+                    try {
+                        delay = StringUtils.isBlank(value) ? null : Integer.valueOf(value.trim());
+                    } catch (NumberFormatException e) {
+                        throw new ManifestException("Manifest line " + lineNumber + " has invalid delay", e);
+                    }
+                } else if (!name.isEmpty()) {
+                    parameters.put(name, value);
+                }
+            }
+            if (StringUtils.isBlank(job)) {
+                throw new ManifestException("Manifest line " + lineNumber + " does not specify a job", null);
+            }
+            return step.newEntry(job, parameters, delay);
+        }
+    }
+
+    /**
+     * Splits a single CSV line, supporting double quoted cells with {@code ""} as an escaped quote.
+     *
+     * @param line       the line.
+     * @param lineNumber the line number, for error messages.
+     * @return the cells.
+     */
+    static List<String> splitCsv(String line, int lineNumber) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        cell.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    cell.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        if (quoted) {
+            throw new ManifestException("Manifest line " + lineNumber + " has an unterminated quote", null);
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+
+    /**
+     * Thrown from the manifest iterators when the manifest cannot be read or parsed.
+     */
+    static class ManifestException extends RuntimeException {
+        ManifestException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
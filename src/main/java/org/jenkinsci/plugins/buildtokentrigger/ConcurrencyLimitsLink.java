@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+
+/**
+ * Shows the current {@link AdaptiveConcurrencyLimit} for each remote Jenkins under <em>Manage Jenkins</em>.
+ */
+@Extension
+public class ConcurrencyLimitsLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "buildTokenTriggerLimits";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.ConcurrencyLimitsLink_DisplayName();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.ConcurrencyLimitsLink_Description();
+    }
+
+    /**
+     * Returns the current limits.
+     *
+     * @return the current limits, ordered by Jenkins URL.
+     */
+    @Nonnull
+    public List<Limit> getLimits() {
+        List<Limit> result = new ArrayList<>();
+        for (AdaptiveConcurrencyLimit limit : AdaptiveConcurrencyLimit.all().values()) {
+            result.add(new Limit(limit.getJenkinsUrl(), limit.getLimit(), limit.getInFlight(), limit.getQueued()));
+        }
+        return result;
+    }
+
+    /**
+     * A snapshot of the limit for a remote Jenkins.
+     */
+    public static final class Limit {
+        private final String jenkinsUrl;
+        private final int limit;
+        private final int inFlight;
+        private final int queued;
+
+        Limit(String jenkinsUrl, int limit, int inFlight, int queued) {
+            this.jenkinsUrl = jenkinsUrl;
+            this.limit = limit;
+            this.inFlight = inFlight;
+            this.queued = queued;
+        }
+
+        public String getJenkinsUrl() {
+            return jenkinsUrl;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+    }
+}
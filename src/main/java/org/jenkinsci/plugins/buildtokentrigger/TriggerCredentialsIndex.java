@@ -0,0 +1,288 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsNameProvider;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ModelObject;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * An index of the {@link TriggerCredentials} in each {@link CredentialsStore}, keyed by normalized Jenkins URL.
+ * <p>
+ * A store is scanned once, the first time it is needed, and its index is kept until the store is saved. A lookup
+ * then only visits the credentials for the requested Jenkins URL in each store visible from the context, applying the
+ * domain and permission checks to those alone, so it costs O(matches) rather than O(all credentials). Indexes are
+ * also rebuilt after {@link #TTL_SECONDS} as a safety net for stores that are not persisted through
+ * {@link Saveable}.
+ */
+final class TriggerCredentialsIndex {
+
+    /**
+     * How long the index of a store may be used before it is rebuilt even if the store has not been saved.
+     */
+    static final long TTL_SECONDS =
+            Math.max(0L, Long.getLong(TriggerCredentialsIndex.class.getName() + ".ttlSeconds", 600L));
+
+    /**
+     * The most credentials listed at once.
+     */
+    static final int PAGE_SIZE =
+            Math.max(1, Integer.getInteger(TriggerCredentialsIndex.class.getName() + ".pageSize", 500));
+
+    /**
+     * Bumped every time an index is discarded, so that a scan racing with a save is not kept.
+     */
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static final Map<CredentialsStore, StoreIndex> indexes = new WeakHashMap<>();
+
+    private static final Comparator<ListBoxModel.Option> BY_NAME = new Comparator<ListBoxModel.Option>() {
+        @Override
+        public int compare(ListBoxModel.Option o1, ListBoxModel.Option o2) {
+            int result = o1.name.compareToIgnoreCase(o2.name);
+            return result != 0 ? result : o1.value.compareTo(o2.value);
+        }
+    };
+
+    private TriggerCredentialsIndex() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Returns a page of the credentials for the specified Jenkins URL visible from the specified context, ordered by
+     * name.
+     *
+     * @param owner          the context.
+     * @param authentication the authentication to look up credentials as.
+     * @param jenkinsUrl     the Jenkins URL, will be normalized.
+     * @param filter         only return credentials whose ID or name contains this, ignoring case, or {@code null}
+     *                       to return all.
+     * @param offset         the number of matching credentials to skip.
+     * @param limit          the maximum number of credentials to return.
+     * @return the matching credentials as new list box options.
+     */
+    @Nonnull
+    static List<ListBoxModel.Option> lookup(@Nonnull Item owner, @Nonnull Authentication authentication,
+                                            @CheckForNull String jenkinsUrl, @CheckForNull String filter,
+                                            int offset, int limit) {
+        String url = TriggerCredentialsImpl.normalizeUrl(jenkinsUrl);
+        if (StringUtils.isBlank(url)) {
+            return new ArrayList<>();
+        }
+        List<DomainRequirement> requirements = URIRequirementBuilder.fromUri(url).build();
+        String needle = StringUtils.isBlank(filter) ? null : filter.trim().toLowerCase(Locale.ENGLISH);
+        Set<String> ids = new HashSet<>();
+        List<ListBoxModel.Option> matches = new ArrayList<>();
+        for (CredentialsStore store : CredentialsProvider.lookupStores(owner)) {
+            if (!isVisible(store, owner, authentication)) {
+                continue;
+            }
+            boolean system = store.getContext() instanceof Jenkins;
+            for (Indexed entry : indexOf(store).get(url)) {
+                if (system && entry.credentials.getScope() == CredentialsScope.SYSTEM) {
+                    // only for use by Jenkins itself, not by items
+                    continue;
+                }
+                if (!entry.domain.test(requirements)) {
+                    continue;
+                }
+                if (needle != null && !entry.id.toLowerCase(Locale.ENGLISH).contains(needle)
+                        && !entry.name.toLowerCase(Locale.ENGLISH).contains(needle)) {
+                    continue;
+                }
+                // the nearest store wins when the same ID is in more than one
+                if (ids.add(entry.id)) {
+                    // a new option every time as the selected flag is mutable
+                    matches.add(new ListBoxModel.Option(entry.name, entry.id));
+                }
+            }
+        }
+        Collections.sort(matches, BY_NAME);
+        int from = Math.min(Math.max(0, offset), matches.size());
+        int to = Math.min(matches.size(), from + Math.max(0, limit));
+        return new ArrayList<>(matches.subList(from, to));
+    }
+
+    /**
+     * Mirrors the visibility rules of the built-in providers: personal credentials are only visible to their user,
+     * other stores to those who may use credentials from them.
+     */
+    private static boolean isVisible(@Nonnull CredentialsStore store, @Nonnull Item owner,
+                                     @Nonnull Authentication authentication) {
+        ModelObject context = store.getContext();
+        if (context instanceof User) {
+            return !ACL.SYSTEM.equals(authentication)
+                    && ((User) context).getId().equals(authentication.getName())
+                    && owner.getACL().hasPermission(authentication, CredentialsProvider.USE_OWN);
+        }
+        return ACL.SYSTEM.equals(authentication)
+                || store.getACL().hasPermission(authentication, CredentialsProvider.USE_ITEM);
+    }
+
+    @Nonnull
+    private static StoreIndex indexOf(@Nonnull CredentialsStore store) {
+        long now = System.nanoTime();
+        long current;
+        synchronized (indexes) {
+            StoreIndex index = indexes.get(store);
+            if (index != null && now - index.created < TimeUnit.SECONDS.toNanos(TTL_SECONDS)) {
+                return index;
+            }
+            current = generation.get();
+        }
+        // scan outside the lock, a concurrent scan of the same store is harmless
+        StoreIndex index = new StoreIndex(now);
+        for (Domain domain : store.getDomains()) {
+            for (Credentials credentials : store.getCredentials(domain)) {
+                if (credentials instanceof TriggerCredentials) {
+                    index.add(domain, (TriggerCredentials) credentials);
+                }
+            }
+        }
+        synchronized (indexes) {
+            if (generation.get() == current) {
+                indexes.put(store, index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Discards all indexes.
+     */
+    static void invalidateAll() {
+        synchronized (indexes) {
+            generation.incrementAndGet();
+            indexes.clear();
+        }
+    }
+
+    /**
+     * Discards the indexes of the stores that belong to the specified context.
+     *
+     * @param context the context of the stores.
+     */
+    static void invalidate(@Nonnull ModelObject context) {
+        synchronized (indexes) {
+            generation.incrementAndGet();
+            for (Iterator<CredentialsStore> i = indexes.keySet().iterator(); i.hasNext(); ) {
+                if (context.equals(i.next().getContext())) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private static final class Indexed {
+        private final Domain domain;
+        private final TriggerCredentials credentials;
+        private final String id;
+        private final String name;
+
+        private Indexed(Domain domain, TriggerCredentials credentials) {
+            this.domain = domain;
+            this.credentials = credentials;
+            this.id = credentials.getId();
+            this.name = CredentialsNameProvider.name(credentials);
+        }
+    }
+
+    private static final class StoreIndex {
+        private final long created;
+        private final Map<String, List<Indexed>> byUrl = new HashMap<>();
+
+        private StoreIndex(long created) {
+            this.created = created;
+        }
+
+        private void add(Domain domain, TriggerCredentials credentials) {
+            String url = TriggerCredentialsImpl.normalizeUrl(credentials.getJenkinsUrl());
+            List<Indexed> entries = byUrl.get(url);
+            if (entries == null) {
+                entries = new ArrayList<>();
+                byUrl.put(url, entries);
+            }
+            entries.add(new Indexed(domain, credentials));
+        }
+
+        @Nonnull
+        private List<Indexed> get(String url) {
+            List<Indexed> entries = byUrl.get(url);
+            return entries == null ? Collections.<Indexed>emptyList() : entries;
+        }
+    }
+
+    /**
+     * Discards the index of a store when the store is saved.
+     */
+    @Extension
+    public static class SaveListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof SystemCredentialsProvider) {
+                // the system store belongs to Jenkins, but Jenkins is not what is saved
+                Jenkins jenkins = Jenkins.getInstanceOrNull();
+                if (jenkins != null) {
+                    invalidate(jenkins);
+                }
+            } else if (o instanceof ModelObject) {
+                // a user or folder, whose stores are saved with it
+                invalidate((ModelObject) o);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Holds the {@link ExecutorService} that performs the blocking trigger I/O.
+ * <p>
+ * When the runtime supports virtual threads, each trigger gets its own virtual thread so that in-flight requests do
+ * not pin an OS thread. Otherwise the triggers run on a bounded pool of platform threads.
+ */
+final class TriggerExecutors {
+
+    private static final Logger LOGGER = Logger.getLogger(TriggerExecutors.class.getName());
+
+    /**
+     * The maximum number of platform threads used when virtual threads are not available.
+     */
+    static final int POOL_SIZE = Math.max(1, Integer.getInteger(TriggerExecutors.class.getName() + ".poolSize", 32));
+
+    /**
+     * Escape hatch to force the platform thread pool even when virtual threads are available.
+     */
+    static final boolean DISABLE_VIRTUAL_THREADS =
+            Boolean.getBoolean(TriggerExecutors.class.getName() + ".disableVirtualThreads");
+
+    private static final ExecutorService EXECUTOR = create();
+
+    private TriggerExecutors() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Returns the executor to run trigger I/O on.
+     *
+     * @return the executor to run trigger I/O on.
+     */
+    @Nonnull
+    static ExecutorService get() {
+        return EXECUTOR;
+    }
+
+    @Nonnull
+    private static ExecutorService create() {
+        if (!DISABLE_VIRTUAL_THREADS) {
+            ExecutorService executor = newVirtualThreadExecutor();
+            if (executor != null) {
+                LOGGER.log(Level.FINE, "Using virtual threads for build token triggers");
+                return executor;
+            }
+        }
+        LOGGER.log(Level.FINE, "Using a pool of {0} platform threads for build token triggers", POOL_SIZE);
+        return newPlatformThreadExecutor(POOL_SIZE);
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread.
+     *
+     * @return the executor or {@code null} if the runtime does not support virtual threads.
+     */
+    @CheckForNull
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Java 21+, looked up reflectively as we still target Java 8
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            // expected on older runtimes
+            return null;
+        } catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Could not create virtual thread executor, falling back to platform threads", e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates an executor that runs tasks on a bounded pool of platform threads.
+     *
+     * @param poolSize the maximum number of threads.
+     * @return the executor.
+     */
+    @Nonnull
+    static ExecutorService newPlatformThreadExecutor(int poolSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Build Token Trigger"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
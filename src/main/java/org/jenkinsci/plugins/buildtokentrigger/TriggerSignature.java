@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import hudson.Util;
+import hudson.util.Secret;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs trigger requests with an HMAC derived from the build token so that the token itself is never sent.
+ * <p>
+ * The signature covers the job, the quiet period, the parameters, a timestamp and a single-use nonce. The signing
+ * key is derived from the token once and cached for as long as the {@link Secret} is alive, so signing a request
+ * costs a single MAC computation.
+ */
+public final class TriggerSignature {
+
+    /**
+     * The MAC algorithm.
+     */
+    public static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * The request parameter carrying the timestamp in milliseconds since the epoch.
+     */
+    public static final String TIMESTAMP = "timestamp";
+
+    /**
+     * The request parameter carrying the nonce.
+     */
+    public static final String NONCE = "nonce";
+
+    /**
+     * The request parameter carrying the hex encoded signature.
+     */
+    public static final String SIGNATURE = "signature";
+
+    private static final byte[] KEY_DERIVATION_LABEL = "build-token-trigger-v1".getBytes(StandardCharsets.UTF_8);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Map<Secret, SecretKeySpec> keys = Collections.synchronizedMap(
+            new WeakHashMap<Secret, SecretKeySpec>());
+
+    private TriggerSignature() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Generates a new nonce.
+     *
+     * @return a new random nonce.
+     */
+    @Nonnull
+    public static String newNonce() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return Util.toHexString(bytes);
+    }
+
+    /**
+     * Computes the signature of a trigger request.
+     *
+     * @param token      the build token.
+     * @param job        the job being triggered.
+     * @param delay      the quiet period or {@code null}.
+     * @param parameters the build parameters.
+     * @param timestamp  the request timestamp in milliseconds since the epoch.
+     * @param nonce      the request nonce.
+     * @return the hex encoded signature.
+     * @throws GeneralSecurityException if the MAC algorithm is not available.
+     */
+    @Nonnull
+    public static String sign(@Nonnull Secret token, @Nonnull String job, @CheckForNull Integer delay,
+                              @Nonnull Map<String, String> parameters, long timestamp, @Nonnull String nonce)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(ALGORITHM);
+        mac.init(keyFor(token));
+        return Util.toHexString(
+                mac.doFinal(canonicalize(job, delay, parameters, timestamp, nonce).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Nonnull
+    private static SecretKeySpec keyFor(@Nonnull Secret token) throws GeneralSecurityException {
+        SecretKeySpec key = keys.get(token);
+        if (key == null) {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(token.getPlainText().getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            key = new SecretKeySpec(mac.doFinal(KEY_DERIVATION_LABEL), ALGORITHM);
+            keys.put(token, key);
+        }
+        return key;
+    }
+
+    @Nonnull
+    private static String canonicalize(@Nonnull String job, @CheckForNull Integer delay,
+                                       @Nonnull Map<String, String> parameters, long timestamp,
+                                       @Nonnull String nonce) {
+        StringBuilder buf = new StringBuilder();
+        append(buf, job);
+        append(buf, delay == null || delay < 0 ? "" : delay.toString());
+        append(buf, Long.toString(timestamp));
+        append(buf, nonce);
+        for (Map.Entry<String, String> entry : new TreeMap<>(parameters).entrySet()) {
+            append(buf, entry.getKey());
+            append(buf, Util.fixNull(entry.getValue()));
+        }
+        return buf.toString();
+    }
+
+    private static void append(StringBuilder buf, String value) {
+        // length prefix so that no two distinct requests can produce the same canonical form
+        buf.append(value.length()).append(':').append(value).append('\n');
+    }
+
+    /**
+     * Verifies signed trigger requests, rejecting stale timestamps and replayed nonces.
+     * <p>
+     * Every accepted nonce is remembered until its timestamp can no longer pass the skew check. Forgetting a nonce
+     * any earlier would allow a replay, so once {@code maxNonces} unexpired nonces are held further requests are
+     * rejected until some expire. Size {@code maxNonces} as the peak request rate times twice the skew window.
+     */
+    public static class Verifier {
+        private final Secret token;
+        private final long maxSkewMillis;
+        private final int maxNonces;
+        private final Map<String, Long> seen = new LinkedHashMap<>();
+
+        /**
+         * Constructor.
+         *
+         * @param token     the build token.
+         * @param maxSkew   the maximum permitted difference between the request timestamp and the local clock.
+         * @param unit      the unit of {@code maxSkew}.
+         * @param maxNonces the maximum number of unexpired nonces to remember.
+         */
+        public Verifier(@Nonnull Secret token, long maxSkew, @Nonnull TimeUnit unit, int maxNonces) {
+            this.token = token;
+            this.maxSkewMillis = unit.toMillis(maxSkew);
+            this.maxNonces = maxNonces;
+        }
+
+        /**
+         * Verifies a signed trigger request. A nonce is only accepted once.
+         *
+         * @param job        the job being triggered.
+         * @param delay      the quiet period or {@code null}.
+         * @param parameters the build parameters.
+         * @param timestamp  the request timestamp in milliseconds since the epoch.
+         * @param nonce      the request nonce.
+         * @param signature  the hex encoded signature.
+         * @return {@code true} if and only if the request is authentic, fresh and not a replay, {@code false} if the
+         * request is not verified or there is no room left to remember its nonce.
+         * @throws GeneralSecurityException if the MAC algorithm is not available.
+         */
+        public boolean verify(@Nonnull String job, @CheckForNull Integer delay,
+                              @Nonnull Map<String, String> parameters, long timestamp, @Nonnull String nonce,
+                              @Nonnull String signature) throws GeneralSecurityException {
+            long now = System.currentTimeMillis();
+            if (Math.abs(now - timestamp) > maxSkewMillis) {
+                return false;
+            }
+            String expected = sign(token, job, delay, parameters, timestamp, nonce);
+            if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+                    signature.getBytes(StandardCharsets.US_ASCII))) {
+                return false;
+            }
+            synchronized (seen) {
+                // insertion ordered, so expire from the head until the first nonce that is still within the window
+                for (Iterator<Long> i = seen.values().iterator(); i.hasNext(); ) {
+                    if (now - i.next() <= 2 * maxSkewMillis) {
+                        break;
+                    }
+                    i.remove();
+                }
+                if (seen.containsKey(nonce) || seen.size() >= maxNonces) {
+                    return false;
+                }
+                seen.put(nonce, now);
+            }
+            return true;
+        }
+    }
+}
@@ -23,9 +23,7 @@
  */
 package org.jenkinsci.plugins.buildtokentrigger;
 
-import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.common.IdCredentials;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.AbortException;
@@ -44,11 +42,14 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -60,24 +61,30 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import jenkins.model.Jenkins;
 import jenkins.model.JenkinsLocationConfiguration;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
+import org.acegisecurity.Authentication;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.workflow.steps.MissingContextVariableException;
 import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
-import org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 /**
  * Pipeline step to trigger a build job on a remote Jenkins using a {@link BuildAuthorizationToken}.
@@ -92,6 +99,7 @@ public class TriggerStep extends Step implements Serializable {
     private Integer delay;
     private boolean ignoreMissing;
     private boolean ignoreUnqueued;
+    private boolean signed;
 
     public TriggerStep(String jenkinsUrl, String job, String credentialsId,
                        Map<String, String> parameters, Integer delay) {
@@ -165,6 +173,15 @@ public class TriggerStep extends Step implements Serializable {
         this.ignoreUnqueued = ignoreUnqueued;
     }
 
+    public boolean isSigned() {
+        return signed;
+    }
+
+    @DataBoundSetter
+    public void setSigned(boolean signed) {
+        this.signed = signed;
+    }
+
     @Override
     public StepExecution start(StepContext context) throws Exception {
         return new Execution(this, context);
@@ -226,8 +243,10 @@ public class TriggerStep extends Step implements Serializable {
                     delay = null;
                 }
             }
-            return new TriggerStep(json.getString("jenkinsUrl"), json.getString("job"),
+            TriggerStep step = new TriggerStep(json.getString("jenkinsUrl"), json.getString("job"),
                     json.getString("credentialsId"), parameters, delay);
+            step.setSigned(json.optBoolean("signed"));
+            return step;
         }
 
         public FormValidation doCheckDelay(@QueryParameter String value) {
@@ -297,27 +316,86 @@ public class TriggerStep extends Step implements Serializable {
             if (owner == null || !owner.hasPermission(Item.CONFIGURE)) {
                 return new ListBoxModel().add(value);
             }
-            return CredentialsProvider.listCredentials(
-                    IdCredentials.class,
-                    owner,
-                    owner instanceof Queue.Task
-                            ? Tasks.getAuthenticationOf((Queue.Task) owner)
-                            : ACL.SYSTEM,
-                    URIRequirementBuilder.fromUri(jenkinsUrl).build(),
-                    CredentialsMatchers.allOf(
-                            CredentialsMatchers.instanceOf(TriggerCredentials.class),
-                            CredentialsMatchers
-                                    .withProperty("jenkinsUrl", TriggerCredentialsImpl.normalizeUrl(jenkinsUrl))
-                    )
-            );
+            ListBoxModel result = new ListBoxModel();
+            result.addAll(TriggerCredentialsIndex.lookup(owner, authenticationOf(owner), jenkinsUrl, null, 0,
+                    TriggerCredentialsIndex.PAGE_SIZE));
+            if (StringUtils.isNotBlank(value)) {
+                // keep the current selection even if it is beyond the first page
+                boolean found = false;
+                for (ListBoxModel.Option option : result) {
+                    found = found || value.equals(option.value);
+                }
+                if (!found) {
+                    result.add(value);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Searches the credentials for a Jenkins URL one page at a time, for when there are too many to list.
+         *
+         * @param owner      the context.
+         * @param jenkinsUrl the Jenkins URL.
+         * @param filter     only return credentials whose ID or name contains this, ignoring case.
+         * @param offset     the number of matching credentials to skip.
+         * @param limit      the maximum number of credentials to return.
+         * @return a JSON object with the {@code credentials} on the page and whether there are {@code more}.
+         */
+        public HttpResponse doSearchCredentials(@AncestorInPath Item owner,
+                                                @QueryParameter("jenkinsUrl") String jenkinsUrl,
+                                                @QueryParameter String filter,
+                                                @QueryParameter int offset,
+                                                @QueryParameter int limit) {
+            if (owner == null) {
+                return HttpResponses.notFound();
+            }
+            owner.checkPermission(Item.CONFIGURE);
+            int pageSize = limit <= 0 ? TriggerCredentialsIndex.PAGE_SIZE
+                    : Math.min(limit, TriggerCredentialsIndex.PAGE_SIZE);
+            // ask for one more than a page to find out if there is another page
+            List<ListBoxModel.Option> options = TriggerCredentialsIndex.lookup(owner, authenticationOf(owner),
+                    jenkinsUrl, filter, offset, pageSize + 1);
+            JSONArray credentials = new JSONArray();
+            for (ListBoxModel.Option option : options.subList(0, Math.min(pageSize, options.size()))) {
+                JSONObject entry = new JSONObject();
+                entry.put("id", option.value);
+                entry.put("name", option.name);
+                credentials.add(entry);
+            }
+            final JSONObject result = new JSONObject();
+            result.put("offset", Math.max(0, offset));
+            result.put("credentials", credentials);
+            result.put("more", options.size() > pageSize);
+            return new HttpResponse() {
+                @Override
+                public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node)
+                        throws IOException {
+                    rsp.setContentType("application/json;charset=UTF-8");
+                    result.write(rsp.getWriter());
+                }
+            };
+        }
+
+        private static Authentication authenticationOf(@Nonnull Item owner) {
+            return owner instanceof Queue.Task ? Tasks.getAuthenticationOf((Queue.Task) owner) : ACL.SYSTEM;
         }
     }
 
-    public static class Execution extends SynchronousStepExecution<String> {
+    /**
+     * Performs the trigger on {@link TriggerExecutors#get()} rather than on a dedicated platform thread per step. The
+     * trigger is only handed to the executor once the {@link AdaptiveConcurrencyLimit} for the remote Jenkins has a
+     * free slot, so a slow remote never ties up executor threads that triggers to other remotes need.
+     */
+    public static class Execution extends StepExecution {
 
         private static final long serialVersionUID = 1L;
         @SuppressFBWarnings(value = "SE_TRANSIENT_FIELD_NOT_RESTORED", justification = "Only used when starting.")
         private transient final TriggerStep step;
+        private transient volatile Future<?> task;
+        private transient volatile Thread thread;
+        private transient volatile boolean queued;
+        private final AtomicBoolean done = new AtomicBoolean();
 
         Execution(TriggerStep step, StepContext context) {
             super(context);
@@ -325,12 +403,107 @@ public class TriggerStep extends Step implements Serializable {
         }
 
         @Override
-        protected String run() throws Exception {
-            Run<?, ?> run = getContext().get(Run.class);
-            if (run == null) {
-                throw new MissingContextVariableException(Run.class);
+        public boolean start() throws Exception {
+            // resolve the remote and credentials on the executor, then queue for a slot without holding the thread
+            task = TriggerExecutors.get().submit(new Runnable() {
+                @Override
+                public void run() {
+                    thread = Thread.currentThread();
+                    try {
+                        Run<?, ?> run = getContext().get(Run.class);
+                        if (run == null) {
+                            throw new MissingContextVariableException(Run.class);
+                        }
+                        final TaskListener listener = getContext().get(TaskListener.class);
+                        assert listener != null;
+                        final String jenkinsUrl = resolveJenkinsUrl(step.jenkinsUrl);
+                        final TriggerCredentials credentials = resolveCredentials(step.credentialsId, jenkinsUrl, run);
+                        AdaptiveConcurrencyLimit limit = AdaptiveConcurrencyLimit.forUrl(jenkinsUrl);
+                        queued = true;
+                        if (!limit.execute(TriggerExecutors.get(), new AdaptiveConcurrencyLimit.Task() {
+                            @Override
+                            public void run(@Nonnull AdaptiveConcurrencyLimit.Slot slot) {
+                                queued = false;
+                                thread = Thread.currentThread();
+                                try {
+                                    if (!done.get()) {
+                                        onSuccess(trigger(step, jenkinsUrl, credentials, listener, slot));
+                                    }
+                                } catch (Throwable t) {
+                                    onFailure(t);
+                                } finally {
+                                    thread = null;
+                                }
+                            }
+                        })) {
+                            listener.getLogger().printf("[%tc] Waiting for one of %d trigger slots on %s%n",
+                                    new Date(), limit.getLimit(), jenkinsUrl);
+                        }
+                    } catch (Throwable t) {
+                        onFailure(t);
+                    } finally {
+                        thread = null;
+                    }
+                }
+            });
+            return false;
+        }
+
+        @Override
+        public void stop(@Nonnull Throwable cause) throws Exception {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            Future<?> task = this.task;
+            if (task != null) {
+                task.cancel(true);
+            }
+            Thread thread = this.thread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            getContext().onFailure(new Exception("Resume after a restart not supported"));
+        }
+
+        @Override
+        public String getStatus() {
+            Thread thread = this.thread;
+            if (thread != null) {
+                return "running in thread: " + StringUtils.defaultIfBlank(thread.getName(), thread.toString());
+            } else if (queued) {
+                return "waiting for a trigger slot";
+            } else if (task != null) {
+                return "waiting for a trigger thread";
             }
-            String jenkinsUrl = step.jenkinsUrl;
+            return "not yet scheduled";
+        }
+
+        private void onSuccess(String location) {
+            if (done.compareAndSet(false, true)) {
+                getContext().onSuccess(location);
+            }
+        }
+
+        private void onFailure(Throwable t) {
+            if (done.compareAndSet(false, true)) {
+                getContext().onFailure(t);
+            }
+        }
+
+        /**
+         * Resolves the remote Jenkins URL, defaulting to this Jenkins.
+         *
+         * @param jenkinsUrl the configured Jenkins URL or {@code null}.
+         * @return the normalized Jenkins URL.
+         * @throws IOException if the URL could not be determined.
+         */
+        @Nonnull
+        static String resolveJenkinsUrl(@CheckForNull String jenkinsUrl) throws IOException {
             if (StringUtils.isBlank(jenkinsUrl)) {
                 // default to own
                 JenkinsLocationConfiguration cfg = JenkinsLocationConfiguration.get();
@@ -339,94 +512,180 @@ public class TriggerStep extends Step implements Serializable {
             if (StringUtils.isBlank(jenkinsUrl)) {
                 throw new IOException("Could not determine Jenkins URL");
             }
-            jenkinsUrl = TriggerCredentialsImpl.normalizeUrl(jenkinsUrl);
+            return TriggerCredentialsImpl.normalizeUrl(jenkinsUrl);
+        }
+
+        /**
+         * Resolves the credentials to trigger with.
+         *
+         * @param credentialsId the credentials ID.
+         * @param jenkinsUrl    the normalized Jenkins URL.
+         * @param run           the run to resolve credentials against.
+         * @return the credentials.
+         * @throws IOException if the credentials could not be found or are for a different Jenkins.
+         */
+        @Nonnull
+        static TriggerCredentials resolveCredentials(String credentialsId, @Nonnull String jenkinsUrl,
+                                                     @Nonnull Run<?, ?> run) throws IOException {
             TriggerCredentials credentials =
-                    CredentialsProvider.findCredentialById(step.credentialsId, TriggerCredentials.class, run,
+                    CredentialsProvider.findCredentialById(credentialsId, TriggerCredentials.class, run,
                             URIRequirementBuilder.fromUri(jenkinsUrl).build());
             if (credentials == null) {
                 throw new CredentialNotFoundException(
-                        "Could not find credentials entry with ID '" + step.credentialsId + "'");
+                        "Could not find credentials entry with ID '" + credentialsId + "'");
             }
             if (!StringUtils.equals(jenkinsUrl, credentials.getJenkinsUrl())) {
                 throw new CredentialNotFoundException(
-                        "Credentials with ID '" + step.credentialsId + "' are for " + credentials.getJenkinsUrl()
+                        "Credentials with ID '" + credentialsId + "' are for " + credentials.getJenkinsUrl()
                                 + " not " + jenkinsUrl);
             }
+            return credentials;
+        }
+
+        /**
+         * Performs the trigger request for a step, blocking the calling thread while waiting for a slot. Must not be
+         * called from {@link TriggerExecutors#get()}.
+         *
+         * @param step     the step.
+         * @param run      the run to resolve credentials against.
+         * @param listener the listener to log to.
+         * @return the location of the queue item or {@code about:missing} / {@code about:unqueued}.
+         * @throws Exception if the trigger failed.
+         */
+        static String trigger(TriggerStep step, Run<?, ?> run, TaskListener listener) throws Exception {
+            String jenkinsUrl = resolveJenkinsUrl(step.jenkinsUrl);
+            TriggerCredentials credentials = resolveCredentials(step.credentialsId, jenkinsUrl, run);
+            AdaptiveConcurrencyLimit limit = AdaptiveConcurrencyLimit.forUrl(jenkinsUrl);
+            if (!limit.tryAcquire()) {
+                listener.getLogger().printf("[%tc] Waiting for one of %d trigger slots on %s%n",
+                        new Date(), limit.getLimit(), jenkinsUrl);
+                limit.acquire();
+            }
+            return trigger(step, jenkinsUrl, credentials, listener, limit.new Slot());
+        }
+
+        /**
+         * Performs the trigger request for a step using a slot that has already been taken. The slot is released,
+         * scored by how the remote responded, before this method returns.
+         *
+         * @param step        the step.
+         * @param jenkinsUrl  the normalized Jenkins URL.
+         * @param credentials the credentials for the Jenkins URL.
+         * @param listener    the listener to log to.
+         * @param slot        the slot.
+         * @return the location of the queue item or {@code about:missing} / {@code about:unqueued}.
+         * @throws Exception if the trigger failed.
+         */
+        static String trigger(@Nonnull TriggerStep step, @Nonnull String jenkinsUrl,
+                              @Nonnull TriggerCredentials credentials, @Nonnull TaskListener listener,
+                              @Nonnull AdaptiveConcurrencyLimit.Slot slot) throws Exception {
             Secret secret = credentials.getPassword();
             String jobUrl = StringUtils.removeEnd(jenkinsUrl, "/")
                     + "/job/"
                     + StringUtils.removeStart(StringUtils.removeEnd(step.job, "/"), "/")
                     .replace("/", "/job/");
-            TaskListener listener = getContext().get(TaskListener.class);
-            assert listener != null;
             listener.getLogger()
                     .printf("[%tc] Triggering %s%n", new Date(), HyperlinkNote.encodeTo(jobUrl, step.job));
             String triggerUrl =
                     jenkinsUrl + "/buildByToken" + (step.parameters.isEmpty() ? "/build" : "/buildWithParameters");
-            StringBuilder data = new StringBuilder();
-            data.append("job=");
-            data.append(URLEncoder.encode(step.job, "UTF-8"));
-            data.append("&token=");
-            data.append(URLEncoder.encode(secret.getPlainText(), "UTF-8"));
-            if (step.delay != null && step.delay >= 0) {
-                data.append("&delay=").append(step.delay);
-            }
-            for (Map.Entry<String, String> entry : step.parameters.entrySet()) {
-                data.append("&");
-                data.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
-                data.append("=");
-                data.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
-            }
-            URL trigger = new URL(triggerUrl);
-            ProxyConfiguration proxy = Jenkins.getInstance().proxy;
-            HttpURLConnection connection;
-            if (proxy == null) {
-                connection = (HttpURLConnection) trigger.openConnection();
-            } else {
-                connection = (HttpURLConnection) trigger.openConnection(proxy.createProxy(trigger.getHost()));
-            }
+            // the slot is already held, so a signed request is not stale when it is sent
+            long latency = AdaptiveConcurrencyLimit.NO_SAMPLE;
+            boolean overloaded = false;
             try {
-                byte[] bytes = data.toString().getBytes(StandardCharsets.UTF_8);
-                connection.setRequestMethod("POST");
-                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                connection.setRequestProperty("Content-Length", Integer.toString(bytes.length));
-                connection.setUseCaches(false);
-                connection.setDoOutput(true);
-                try (OutputStream os = connection.getOutputStream()) {
-                    os.write(bytes);
+                StringBuilder data = new StringBuilder();
+                data.append("job=");
+                data.append(URLEncoder.encode(step.job, "UTF-8"));
+                if (step.signed) {
+                    long timestamp = System.currentTimeMillis();
+                    String nonce = TriggerSignature.newNonce();
+                    data.append("&" + TriggerSignature.TIMESTAMP + "=").append(timestamp);
+                    data.append("&" + TriggerSignature.NONCE + "=").append(nonce);
+                    data.append("&" + TriggerSignature.SIGNATURE + "=").append(
+                            TriggerSignature.sign(secret, step.job, step.delay, step.parameters, timestamp, nonce));
+                } else {
+                    data.append("&token=");
+                    data.append(URLEncoder.encode(secret.getPlainText(), "UTF-8"));
                 }
-                int responseCode = connection.getResponseCode();
-                listener.getLogger().printf("[%tc] Trigger returned HTTP/%d%n", new Date(), responseCode);
-                if (responseCode == 404) {
-                    if (step.ignoreMissing) {
-                        listener.getLogger().printf("[%tc] Job %s not found%n", new Date(), step.job);
-                        return "about:missing";
-                    }
-                    throw new AbortException(
-                            "Job " + step.job + " was not found on " + jenkinsUrl + " using the supplied build token"
-                    );
+                if (step.delay != null && step.delay >= 0) {
+                    data.append("&delay=").append(step.delay);
+                }
+                for (Map.Entry<String, String> entry : step.parameters.entrySet()) {
+                    data.append("&");
+                    data.append(URLEncoder.encode(entry.getKey(), "UTF-8"));
+                    data.append("=");
+                    data.append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+                }
+                URL trigger = new URL(triggerUrl);
+                ProxyConfiguration proxy = Jenkins.getInstance().proxy;
+                HttpURLConnection connection;
+                if (proxy == null) {
+                    connection = (HttpURLConnection) trigger.openConnection();
+                } else {
+                    connection = (HttpURLConnection) trigger.openConnection(proxy.createProxy(trigger.getHost()));
                 }
-                if (responseCode == 302) {
-                    if (step.ignoreUnqueued) {
-                        listener.getLogger().printf("[%tc] Job %s not queued%n", new Date(), step.job);
-                        return "about:unqueued";
+                // until the remote answers, a failure counts as the remote being overloaded
+                overloaded = true;
+                long start = System.nanoTime();
+                try {
+                    byte[] bytes = data.toString().getBytes(StandardCharsets.UTF_8);
+                    connection.setRequestMethod("POST");
+                    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                    connection.setRequestProperty("Content-Length", Integer.toString(bytes.length));
+                    connection.setUseCaches(false);
+                    connection.setDoOutput(true);
+                    try (OutputStream os = connection.getOutputStream()) {
+                        os.write(bytes);
+                    }
+                    int responseCode = connection.getResponseCode();
+                    overloaded = responseCode == 429 || responseCode >= 500;
+                    listener.getLogger().printf("[%tc] Trigger returned HTTP/%d%n", new Date(), responseCode);
+                    if (responseCode == 404) {
+                        if (step.ignoreMissing) {
+                            listener.getLogger().printf("[%tc] Job %s not found%n", new Date(), step.job);
+                            return "about:missing";
+                        }
+                        throw new AbortException(
+                                "Job " + step.job + " was not found on " + jenkinsUrl
+                                        + " using the supplied build token"
+                        );
+                    }
+                    if (responseCode == 302) {
+                        if (step.ignoreUnqueued) {
+                            listener.getLogger().printf("[%tc] Job %s not queued%n", new Date(), step.job);
+                            return "about:unqueued";
+                        }
+                        throw new AbortException(
+                                "Job " + step.job + " on " + jenkinsUrl + " was not accepted into the build queue"
+                        );
+                    }
+                    // only a response from the build queue is comparable with the baseline, a fast 404 is not
+                    latency = System.nanoTime() - start;
+                    String location = connection.getHeaderField("Location");
+                    if (location.startsWith("/")) {
+                        location = StringUtils.removeEnd(jenkinsUrl, "/") + location;
                     }
-                    throw new AbortException(
-                            "Job " + step.job + " on " + jenkinsUrl + " was not accepted into the build queue"
+                    listener.getLogger().printf("[%tc] Job queued as %s%n",
+                            new Date(), HyperlinkNote.encodeTo(location, location)
                     );
+                    return location;
+                } catch (IOException e) {
+                    if (isInterruption(e)) {
+                        // cancelled by us, which says nothing about the remote
+                        overloaded = false;
+                    }
+                    throw e;
+                } finally {
+                    connection.disconnect();
                 }
-                String location = connection.getHeaderField("Location");
-                if (location.startsWith("/")) {
-                    location = StringUtils.removeEnd(jenkinsUrl, "/") + location;
-                }
-                listener.getLogger().printf("[%tc] Job queued as %s%n",
-                        new Date(), HyperlinkNote.encodeTo(location, location)
-                );
-                return location;
             } finally {
-                connection.disconnect();
+                slot.release(latency, overloaded);
             }
         }
 
+        private static boolean isInterruption(IOException e) {
+            return Thread.currentThread().isInterrupted()
+                    || e instanceof ClosedByInterruptException
+                    || e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException);
+        }
     }
 }
@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void burstOfOverloadedResponsesBacksOffOnce() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://burst.example.com");
+        int initial = limit.getLimit();
+        for (int i = 0; i < initial; i++) {
+            assertThat(limit.tryAcquire(), is(true));
+        }
+        assertThat(limit.tryAcquire(), is(false));
+        for (int i = 0; i < initial; i++) {
+            limit.release(10 * MILLIS, true);
+        }
+        assertThat(limit.getLimit(), is(initial / 2));
+        assertThat(limit.getInFlight(), is(0));
+    }
+
+    @Test
+    public void sustainedOverloadKeepsBackingOff() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://overload.example.com");
+        int previous = limit.getLimit();
+        for (int round = 0; round < 3; round++) {
+            int current = limit.getLimit();
+            for (int i = 0; i < current; i++) {
+                limit.tryAcquire();
+                limit.release(10 * MILLIS, true);
+            }
+            assertThat(limit.getLimit() < previous || limit.getLimit() == 1, is(true));
+            previous = limit.getLimit();
+        }
+    }
+
+    @Test
+    public void flatLatencyGrowsTheLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://flat.example.com");
+        int initial = limit.getLimit();
+        for (int i = 0; i < 10 * initial; i++) {
+            int current = limit.getLimit();
+            for (int j = 0; j < current; j++) {
+                limit.tryAcquire();
+            }
+            for (int j = 0; j < current; j++) {
+                limit.release(10 * MILLIS, false);
+            }
+        }
+        assertThat(limit.getLimit() > initial, is(true));
+    }
+
+    @Test
+    public void risingLatencyBacksOff() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://slow.example.com");
+        int initial = limit.getLimit();
+        for (int i = 0; i < initial; i++) {
+            limit.tryAcquire();
+            limit.release(10 * MILLIS, false);
+        }
+        int before = limit.getLimit();
+        for (int i = 0; i < before; i++) {
+            limit.tryAcquire();
+            limit.release(100 * MILLIS, false);
+        }
+        assertThat(limit.getLimit() < before, is(true));
+    }
+
+    @Test
+    public void outlierAtWindowBoundaryDoesNotBecomeTheBaseline() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://window.example.com");
+        for (int i = 0; i < AdaptiveConcurrencyLimit.BASELINE_WINDOW - 1; i++) {
+            limit.tryAcquire();
+            limit.release(10 * MILLIS, false);
+        }
+        // the sample that closes the window is an outlier
+        limit.tryAcquire();
+        limit.release(1000 * MILLIS, false);
+        int before = limit.getLimit();
+        // enough samples to get past the hold-off from the outlier's own back off
+        for (int i = 0; i < 2 * before + 1; i++) {
+            limit.tryAcquire();
+            limit.release(50 * MILLIS, false);
+        }
+        assertThat(limit.getLimit() < before, is(true));
+    }
+
+    @Test
+    public void acquireWaitsForARelease() throws Exception {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://wait.example.com");
+        int initial = limit.getLimit();
+        for (int i = 0; i < initial; i++) {
+            limit.tryAcquire();
+        }
+        final AtomicBoolean acquired = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limit.acquire();
+                    acquired.set(true);
+                } catch (InterruptedException e) {
+                    // ignore
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        waiter.start();
+        assertThat(done.await(200, TimeUnit.MILLISECONDS), is(false));
+        limit.release(10 * MILLIS, false);
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(acquired.get(), is(true));
+    }
+
+    @Test
+    public void executeQueuesUntilASlotIsReleased() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://queue.example.com");
+        int initial = limit.getLimit();
+        for (int i = 0; i < initial; i++) {
+            limit.tryAcquire();
+        }
+        final List<Runnable> executed = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+            }
+        };
+        final AtomicBoolean ran = new AtomicBoolean();
+        assertThat(limit.execute(executor, new AdaptiveConcurrencyLimit.Task() {
+            @Override
+            public void run(AdaptiveConcurrencyLimit.Slot slot) {
+                ran.set(true);
+            }
+        }), is(false));
+        assertThat(limit.getQueued(), is(1));
+        assertThat(executed.size(), is(0));
+        limit.release(AdaptiveConcurrencyLimit.NO_SAMPLE, false);
+        assertThat(limit.getQueued(), is(0));
+        assertThat(executed.size(), is(1));
+        assertThat(limit.getInFlight(), is(initial));
+        executed.get(0).run();
+        assertThat(ran.get(), is(true));
+        // the slot is returned when the task completes
+        assertThat(limit.getInFlight(), is(initial - 1));
+    }
+
+    @Test
+    public void unscoredReleasesDoNotMoveTheLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://unscored.example.com");
+        for (int i = 0; i < 100; i++) {
+            limit.tryAcquire();
+            limit.release(10 * MILLIS, false);
+        }
+        int before = limit.getLimit();
+        for (int i = 0; i < 10 * before; i++) {
+            limit.tryAcquire();
+            limit.release(AdaptiveConcurrencyLimit.NO_SAMPLE, false);
+        }
+        assertThat(limit.getLimit(), is(before));
+    }
+
+    @Test
+    public void slotIsOnlyReleasedOnce() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://once.example.com");
+        limit.tryAcquire();
+        limit.tryAcquire();
+        AdaptiveConcurrencyLimit.Slot slot = limit.new Slot();
+        slot.release(AdaptiveConcurrencyLimit.NO_SAMPLE, false);
+        slot.release(AdaptiveConcurrencyLimit.NO_SAMPLE, false);
+        assertThat(limit.getInFlight(), is(1));
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.ArgumentCaptor;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BulkTriggerStepExecutionTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String jenkinsUrl;
+    private FilePath workspace;
+    private StepContext context;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final CountDownLatch slowReceived = new CountDownLatch(2);
+    private final CountDownLatch slowRelease = new CountDownLatch(1);
+
+    @Before
+    public void startStub() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/buildByToken/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try (InputStream in = exchange.getRequestBody()) {
+                    String job = form(IOUtils.toString(in, "UTF-8")).get("job");
+                    if (job.startsWith("missing")) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    if (job.startsWith("slow")) {
+                        slowReceived.countDown();
+                        slowRelease.await(30, TimeUnit.SECONDS);
+                    }
+                    exchange.getResponseHeaders().add("Location", "/queue/item/" + queued.incrementAndGet() + "/");
+                    exchange.sendResponseHeaders(201, -1);
+                } catch (InterruptedException e) {
+                    exchange.sendResponseHeaders(503, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        jenkinsUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        SystemCredentialsProvider.getInstance().getCredentials().add(
+                new TriggerCredentialsImpl(CredentialsScope.GLOBAL, "bulk", null, jenkinsUrl, "t0k3n"));
+        SystemCredentialsProvider.getInstance().save();
+
+        workspace = new FilePath(tmp.newFolder());
+        Run<?, ?> run = r.buildAndAssertSuccess(r.createFreeStyleProject());
+        context = mock(StepContext.class);
+        when(context.get(Run.class)).thenReturn((Run) run);
+        when(context.get(TaskListener.class)).thenReturn((TaskListener) StreamTaskListener.fromStdout());
+        when(context.get(FilePath.class)).thenReturn(workspace);
+    }
+
+    @After
+    public void stopStub() {
+        slowRelease.countDown();
+        if (server != null) {
+            server.stop(0);
+        }
+        if (serverExecutor != null) {
+            serverExecutor.shutdownNow();
+        }
+    }
+
+    private static Map<String, String> form(String body) throws IOException {
+        Map<String, String> form = new TreeMap<>();
+        for (String pair : body.split("&")) {
+            int index = pair.indexOf('=');
+            form.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"),
+                    URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+        }
+        return form;
+    }
+
+    private StepExecution start(String manifest, BulkTriggerStep step) throws Exception {
+        workspace.child(step.getManifest()).write(manifest, "UTF-8");
+        StepExecution execution = step.start(context);
+        execution.start();
+        return execution;
+    }
+
+    private BulkTriggerStep step() {
+        BulkTriggerStep step = new BulkTriggerStep("jobs.csv", "triggered.jsonl", "bulk");
+        step.setJenkinsUrl(jenkinsUrl);
+        return step;
+    }
+
+    private Map<Integer, JSONObject> results() throws Exception {
+        Map<Integer, JSONObject> results = new TreeMap<>();
+        for (String line : workspace.child("triggered.jsonl").readToString().split("\n")) {
+            if (!line.isEmpty()) {
+                JSONObject result = JSONObject.fromObject(line);
+                results.put(result.getInt("index"), result);
+            }
+        }
+        return results;
+    }
+
+    private Throwable failure() {
+        ArgumentCaptor<Throwable> failure = ArgumentCaptor.forClass(Throwable.class);
+        verify(context, timeout(30000)).onFailure(failure.capture());
+        verify(context, never()).onSuccess(any());
+        return failure.getValue();
+    }
+
+    @Test
+    public void everyEntryIsRecordedInTheOutput() throws Exception {
+        start("job,version\nsite/a,1\nsite/b,2\nsite/c,3\n", step());
+        verify(context, timeout(30000)).onSuccess(3);
+        Map<Integer, JSONObject> results = results();
+        assertThat(results.size(), is(3));
+        List<String> jobs = new ArrayList<>();
+        for (JSONObject result : results.values()) {
+            jobs.add(result.getString("job"));
+            assertThat(result.getString("location"), containsString(jenkinsUrl + "/queue/item/"));
+        }
+        assertThat(jobs.toString(), is("[site/a, site/b, site/c]"));
+    }
+
+    @Test
+    public void failedEntriesAreRecordedAndFailTheStep() throws Exception {
+        start("job\nsite/a\nmissing/b\nsite/c\n", step());
+        Throwable failure = failure();
+        assertThat(failure, instanceOf(AbortException.class));
+        assertThat(failure.getMessage(), containsString("1 of 3 triggers failed"));
+        Map<Integer, JSONObject> results = results();
+        assertThat(results.get(2).getString("job"), is("missing/b"));
+        assertThat(results.get(2).getString("error"), containsString("was not found"));
+        assertThat(results.get(1).has("location"), is(true));
+        assertThat(results.get(3).has("location"), is(true));
+    }
+
+    @Test
+    public void ignoredMissingEntriesDoNotFailTheStep() throws Exception {
+        BulkTriggerStep step = step();
+        step.setIgnoreMissing(true);
+        start("job\nsite/a\nmissing/b\n", step);
+        verify(context, timeout(30000)).onSuccess(2);
+        assertThat(results().get(2).getString("location"), is("about:missing"));
+    }
+
+    @Test
+    public void invalidLineInTheManifestAbortsTheStep() throws Exception {
+        start("job,delay\nsite/a,\nsite/b,soon\nsite/c,\n", step());
+        Throwable failure = failure();
+        assertThat(failure, instanceOf(AbortException.class));
+        assertThat(failure.getMessage(), is("Manifest line 3 has invalid delay"));
+    }
+
+    @Test
+    public void unknownFormatAbortsTheStep() throws Exception {
+        BulkTriggerStep step = step();
+        step.setFormat("tsv");
+        start("job\nsite/a\n", step);
+        Throwable failure = failure();
+        assertThat(failure, instanceOf(AbortException.class));
+        assertThat(failure.getMessage(), containsString("Unknown manifest format 'tsv'"));
+        assertThat(queued.get(), is(0));
+    }
+
+    @Test
+    public void stopCompletesTheStepOnce() throws Exception {
+        BulkTriggerStep step = step();
+        step.setParallelism(2);
+        StepExecution execution = start("job\nslow/a\nslow/b\nslow/c\nslow/d\n", step);
+        assertThat(slowReceived.await(30, TimeUnit.SECONDS), is(true));
+        AbortException cause = new AbortException("stopped");
+        execution.stop(cause);
+        slowRelease.countDown();
+        verify(context, after(2000).times(1)).onFailure(any(Throwable.class));
+        verify(context).onFailure(cause);
+        verify(context, never()).onSuccess(any());
+        // the entries that had not started are skipped
+        assertThat(queued.get() <= 2, is(true));
+    }
+}
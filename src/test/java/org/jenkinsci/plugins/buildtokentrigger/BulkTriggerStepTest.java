@@ -0,0 +1,334 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BulkTriggerStepTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static List<TriggerStep> read(String manifest, String content) {
+        BulkTriggerStep step = new BulkTriggerStep(manifest, "out.jsonl", "creds");
+        List<TriggerStep> result = new ArrayList<>();
+        Iterator<TriggerStep> entries = step.entries(new BufferedReader(new StringReader(content)));
+        while (entries.hasNext()) {
+            result.add(entries.next());
+        }
+        return result;
+    }
+
+    private static Map<String, String> map(String... keyValues) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            result.put(keyValues[i], keyValues[i + 1]);
+        }
+        return result;
+    }
+
+    @Test
+    public void splitCsv() {
+        assertThat(BulkTriggerStep.splitCsv("a,b,c", 1), is(Arrays.asList("a", "b", "c")));
+        assertThat(BulkTriggerStep.splitCsv("a,,", 1), is(Arrays.asList("a", "", "")));
+        assertThat(BulkTriggerStep.splitCsv("\"a,b\",c", 1), is(Arrays.asList("a,b", "c")));
+        assertThat(BulkTriggerStep.splitCsv("\"say \"\"hi\"\"\",x", 1), is(Arrays.asList("say \"hi\"", "x")));
+        assertThat(BulkTriggerStep.splitCsv("", 1), is(Collections.singletonList("")));
+    }
+
+    @Test(expected = BulkTriggerStep.ManifestException.class)
+    public void splitCsvUnterminatedQuote() {
+        BulkTriggerStep.splitCsv("\"a,b", 1);
+    }
+
+    @Test
+    public void csvSkipsBlankAndCommentLines() {
+        List<TriggerStep> entries = read("jobs.csv",
+                "# generated\njob,version,delay\n\nsite/a,1.0,5\n   \n# skipped\nsite/b,2.0,\n");
+        assertThat(entries.size(), is(2));
+        assertThat(entries.get(0).getJob(), is("site/a"));
+        assertThat(entries.get(0).getParameters(), is(map("version", "1.0")));
+        assertThat(entries.get(0).getDelay(), is(5));
+        assertThat(entries.get(1).getJob(), is("site/b"));
+        assertThat(entries.get(1).getDelay(), nullValue());
+    }
+
+    @Test
+    public void csvHeaderIsTrimmedAndBomStripped() {
+        List<TriggerStep> entries = read("jobs.csv", "\uFEFFjob, version ,delay\nsite/a,1.0,\n");
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).getJob(), is("site/a"));
+        assertThat(entries.get(0).getParameters(), is(map("version", "1.0")));
+    }
+
+    @Test
+    public void csvColumnsWithoutANameAreIgnored() {
+        List<TriggerStep> entries = read("jobs.csv", "job,version,\nsite/a,1.0,stray\n");
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).getParameters(), is(map("version", "1.0")));
+    }
+
+    @Test
+    public void unknownFormatIsRejected() {
+        BulkTriggerStep step = new BulkTriggerStep("jobs.tsv", "out.jsonl", "creds");
+        step.setFormat("TSV");
+        try {
+            step.isCsv();
+            fail("expected unknown format to be rejected");
+        } catch (BulkTriggerStep.ManifestException e) {
+            assertThat(e.getMessage(), is("Unknown manifest format 'tsv', expected one of csv, jsonl"));
+        }
+        step.setFormat(" JSONL ");
+        assertThat(step.isCsv(), is(false));
+    }
+
+    @Test
+    public void csvInvalidDelay() {
+        try {
+            read("jobs.csv", "job,delay\nsite/a,soon\n");
+            fail("expected invalid delay to be rejected");
+        } catch (BulkTriggerStep.ManifestException e) {
+            assertThat(e.getMessage(), is("Manifest line 2 has invalid delay"));
+        }
+    }
+
+    @Test(expected = BulkTriggerStep.ManifestException.class)
+    public void csvWithoutJobColumn() {
+        read("jobs.csv", "name,version\nsite/a,1.0\n");
+    }
+
+    @Test
+    public void jsonLines() {
+        List<TriggerStep> entries = read("jobs.jsonl",
+                "\uFEFF{\"job\":\"site/a\",\"parameters\":{\"version\":\"1.0\"},\"delay\":30}\n"
+                        + "\n"
+                        + "# comment\n"
+                        + "{\"job\":\"site/b\"}\n");
+        assertThat(entries.size(), is(2));
+        assertThat(entries.get(0).getJob(), is("site/a"));
+        assertThat(entries.get(0).getParameters(), is(map("version", "1.0")));
+        assertThat(entries.get(0).getDelay(), is(30));
+        assertThat(entries.get(1).getJob(), is("site/b"));
+        assertThat(entries.get(1).getParameters(), nullValue());
+    }
+
+    @Test
+    public void jsonLinesInvalidDelay() {
+        try {
+            read("jobs.jsonl", "{\"job\":\"site/a\"}\n{\"job\":\"site/b\",\"delay\":\"soon\"}\n");
+            fail("expected invalid delay to be rejected");
+        } catch (BulkTriggerStep.ManifestException e) {
+            assertThat(e.getMessage().startsWith("Manifest line 2 is not valid"), is(true));
+        }
+    }
+
+    @Test
+    public void dispatchNeverReadsAheadOfFreeSlots() throws Exception {
+        final int parallelism = 3;
+        final int total = 50;
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger maxAhead = new AtomicInteger();
+        Iterator<Integer> entries = new CountingIterator(total, read);
+        BulkTriggerStep.Dispatcher dispatcher = new BulkTriggerStep.Dispatcher(parallelism, executor, null);
+        int count = dispatcher.dispatch(entries, new BulkTriggerStep.Dispatcher.Handler<Integer>() {
+            @Override
+            public void handle(int index, Integer entry, AdaptiveConcurrencyLimit.Slot slot) {
+                int current = inFlight.incrementAndGet();
+                updateMax(maxInFlight, current);
+                updateMax(maxAhead, read.get() - completed.get());
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        });
+        assertThat(count, is(total));
+        assertThat(completed.get(), is(total));
+        assertThat(maxInFlight.get() <= parallelism, is(true));
+        assertThat(maxAhead.get() <= parallelism, is(true));
+    }
+
+    @Test
+    public void cancelStopsDispatchPromptly() throws Exception {
+        final int parallelism = 2;
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger interrupted = new AtomicInteger();
+        final CountDownLatch busy = new CountDownLatch(parallelism);
+        final BulkTriggerStep.Dispatcher dispatcher = new BulkTriggerStep.Dispatcher(parallelism, executor, null);
+        final CountDownLatch finished = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatcher.dispatch(new CountingIterator(10000, read),
+                            new BulkTriggerStep.Dispatcher.Handler<Integer>() {
+                                @Override
+                                public void handle(int index, Integer entry, AdaptiveConcurrencyLimit.Slot slot) {
+                                    started.incrementAndGet();
+                                    busy.countDown();
+                                    try {
+                                        Thread.sleep(TimeUnit.MINUTES.toMillis(5));
+                                    } catch (InterruptedException e) {
+                                        interrupted.incrementAndGet();
+                                    }
+                                }
+                            });
+                } catch (InterruptedException e) {
+                    // expected when cancelled while waiting for a slot
+                } finally {
+                    finished.countDown();
+                }
+            }
+        });
+        reader.start();
+        assertThat(busy.await(10, TimeUnit.SECONDS), is(true));
+        dispatcher.cancel();
+        reader.interrupt();
+        assertThat(finished.await(10, TimeUnit.SECONDS), is(true));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (interrupted.get() < parallelism && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(interrupted.get(), is(parallelism));
+        assertThat(started.get(), is(parallelism));
+        assertThat(read.get() <= parallelism, is(true));
+    }
+
+    @Test
+    public void entriesWaitingForTheRemoteDoNotHoldExecutorThreads() throws Exception {
+        final int parallelism = 5;
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("http://busy.example.com");
+        int initial = limit.getLimit();
+        for (int i = 0; i < initial; i++) {
+            limit.tryAcquire();
+        }
+        final AtomicInteger executed = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final BulkTriggerStep.Dispatcher dispatcher = new BulkTriggerStep.Dispatcher(parallelism, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                executor.execute(command);
+            }
+        }, limit);
+        final AtomicInteger count = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    count.set(dispatcher.dispatch(new CountingIterator(parallelism, new AtomicInteger()),
+                            new BulkTriggerStep.Dispatcher.Handler<Integer>() {
+                                @Override
+                                public void handle(int index, Integer entry, AdaptiveConcurrencyLimit.Slot slot) {
+                                    completed.incrementAndGet();
+                                    slot.release(AdaptiveConcurrencyLimit.NO_SAMPLE, false);
+                                }
+                            }));
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        });
+        reader.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (limit.getQueued() < parallelism && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(limit.getQueued(), is(parallelism));
+        assertThat(executed.get(), is(0));
+        for (int i = 0; i < initial; i++) {
+            limit.release(AdaptiveConcurrencyLimit.NO_SAMPLE, false);
+        }
+        reader.join(TimeUnit.SECONDS.toMillis(10));
+        assertThat(count.get(), is(parallelism));
+        assertThat(completed.get(), is(parallelism));
+        assertThat(limit.getInFlight(), is(0));
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while ((current = max.get()) < value) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private static class CountingIterator implements Iterator<Integer> {
+        private final int total;
+        private final AtomicInteger read;
+
+        CountingIterator(int total, AtomicInteger read) {
+            this.total = total;
+            this.read = read;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return read.get() < total;
+        }
+
+        @Override
+        public Integer next() {
+            return read.incrementAndGet();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
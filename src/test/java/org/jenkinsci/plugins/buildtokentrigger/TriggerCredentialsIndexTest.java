@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.domains.DomainSpecification;
+import com.cloudbees.plugins.credentials.domains.HostnameSpecification;
+import hudson.model.FreeStyleProject;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TriggerCredentialsIndexTest {
+
+    private static final String URL = "http://jenkins.example.com";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void forgetPreviousJenkins() {
+        // the index is static and so outlives each Jenkins
+        TriggerCredentialsIndex.invalidateAll();
+    }
+
+    private List<String> listed(FreeStyleProject project, String jenkinsUrl) {
+        TriggerStep.DescriptorImpl descriptor = r.jenkins.getDescriptorByType(TriggerStep.DescriptorImpl.class);
+        List<String> ids = new ArrayList<>();
+        for (ListBoxModel.Option option : descriptor.doFillCredentialsIdItems(project, jenkinsUrl, "")) {
+            ids.add(option.value);
+        }
+        return ids;
+    }
+
+    private CredentialsStore systemStore() {
+        return CredentialsProvider.lookupStores(r.jenkins).iterator().next();
+    }
+
+    @Test
+    public void onlyCredentialsForTheJenkinsUrlAreListed() throws Exception {
+        systemStore().addCredentials(Domain.global(),
+                new TriggerCredentialsImpl(CredentialsScope.GLOBAL, "match", null, URL + "/", "token"));
+        systemStore().addCredentials(Domain.global(),
+                new TriggerCredentialsImpl(CredentialsScope.GLOBAL, "other", null, "http://other.example.com",
+                        "token"));
+        FreeStyleProject project = r.createFreeStyleProject();
+        assertThat(listed(project, URL), is(Collections.singletonList("match")));
+        assertThat(listed(project, "http://other.example.com/"), is(Collections.singletonList("other")));
+    }
+
+    @Test
+    public void credentialsInDomainExcludingTheJenkinsUrlAreNotListed() throws Exception {
+        systemStore().addDomain(
+                new Domain("elsewhere", null, Collections.<DomainSpecification>singletonList(
+                        new HostnameSpecification("elsewhere.example.com", null))),
+                new TriggerCredentialsImpl(CredentialsScope.GLOBAL, "excluded", null, URL, "token"));
+        systemStore().addCredentials(Domain.global(),
+                new TriggerCredentialsImpl(CredentialsScope.GLOBAL, "included", null, URL, "token"));
+        assertThat(listed(r.createFreeStyleProject(), URL), is(Collections.singletonList("included")));
+    }
+
+    @Test
+    public void savingTheStoreRefreshesTheList() throws Exception {
+        FreeStyleProject project = r.createFreeStyleProject();
+        assertThat(listed(project, URL), is(Collections.<String>emptyList()));
+        systemStore().addCredentials(Domain.global(),
+                new TriggerCredentialsImpl(CredentialsScope.GLOBAL, "added", null, URL, "token"));
+        assertThat(listed(project, URL), is(Collections.singletonList("added")));
+    }
+
+    @Test
+    public void lookupFiltersAndPages() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            systemStore().addCredentials(Domain.global(),
+                    new TriggerCredentialsImpl(CredentialsScope.GLOBAL, "deploy-" + i, null, URL, "token"));
+        }
+        systemStore().addCredentials(Domain.global(),
+                new TriggerCredentialsImpl(CredentialsScope.GLOBAL, "release", null, URL, "token"));
+        FreeStyleProject project = r.createFreeStyleProject();
+        assertThat(ids(TriggerCredentialsIndex.lookup(project, ACL.SYSTEM, URL, "DEPLOY", 1, 2)),
+                is(Arrays.asList("deploy-2", "deploy-3")));
+        assertThat(ids(TriggerCredentialsIndex.lookup(project, ACL.SYSTEM, URL, "deploy", 4, 2)),
+                is(Collections.singletonList("deploy-5")));
+        assertThat(ids(TriggerCredentialsIndex.lookup(project, ACL.SYSTEM, URL, "rel", 0, 10)),
+                is(Collections.singletonList("release")));
+        assertThat(ids(TriggerCredentialsIndex.lookup(project, ACL.SYSTEM, URL, null, 0, 10)).size(), is(6));
+    }
+
+    @Test
+    public void systemScopedCredentialsAreNotListedForItems() throws Exception {
+        systemStore().addCredentials(Domain.global(),
+                new TriggerCredentialsImpl(CredentialsScope.SYSTEM, "system", null, URL, "token"));
+        assertThat(listed(r.createFreeStyleProject(), URL), is(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void optionsAreNotSharedBetweenLookups() throws Exception {
+        systemStore().addCredentials(Domain.global(),
+                new TriggerCredentialsImpl(CredentialsScope.GLOBAL, "match", null, URL, "token"));
+        FreeStyleProject project = r.createFreeStyleProject();
+        List<ListBoxModel.Option> first = TriggerCredentialsIndex.lookup(project, ACL.SYSTEM, URL, null, 0, 10);
+        first.get(0).selected = true;
+        List<ListBoxModel.Option> second = TriggerCredentialsIndex.lookup(project, ACL.SYSTEM, URL, null, 0, 10);
+        assertThat(second.get(0).selected, is(false));
+    }
+
+    @Test
+    public void currentSelectionIsKeptWhenNotListed() throws Exception {
+        FreeStyleProject project = r.createFreeStyleProject();
+        TriggerStep.DescriptorImpl descriptor = r.jenkins.getDescriptorByType(TriggerStep.DescriptorImpl.class);
+        List<String> ids = new ArrayList<>();
+        for (ListBoxModel.Option option : descriptor.doFillCredentialsIdItems(project, URL, "gone")) {
+            ids.add(option.value);
+        }
+        assertThat(ids, is(Collections.singletonList("gone")));
+    }
+
+    private static List<String> ids(List<ListBoxModel.Option> options) {
+        List<String> ids = new ArrayList<>();
+        for (ListBoxModel.Option option : options) {
+            ids.add(option.value);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the OS thread count and heap use of the trigger executors with many triggers in flight against a local
+ * stub that holds every request open for {@link #HOLD_MILLIS}.
+ * <p>
+ * Skipped unless run with {@code -Dbenchmark=true}, e.g.
+ * {@code mvn test -Dtest=TriggerExecutorsBenchmarkTest -Dbenchmark=true}. The 10k case needs a file descriptor
+ * limit of at least 20k ({@code ulimit -n}) as both ends of every connection are in this JVM. Virtual threads are
+ * only measured when running on Java 21+.
+ * <p>
+ * This measures the executors alone: every trigger is submitted straight to the executor and sends the same request
+ * as {@link TriggerStep.Execution} to a single stub, bypassing the {@link AdaptiveConcurrencyLimit}. Through the real
+ * trigger path at most {@link AdaptiveConcurrencyLimit#MAX_LIMIT} requests are in flight against any one remote Jenkins
+ * and the rest wait in its queue without a thread, so the 10k case corresponds to triggering at least
+ * {@code 10000 / MAX_LIMIT} remotes at once rather than 10k triggers against one remote.
+ */
+public class TriggerExecutorsBenchmarkTest {
+
+    private static final long HOLD_MILLIS = 200;
+
+    private HttpServer server;
+    private ScheduledExecutorService responder;
+    private ExecutorService serverExecutor;
+    private URL endpoint;
+
+    @Before
+    public void startStub() throws Exception {
+        assumeTrue("Run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+        responder = Executors.newSingleThreadScheduledExecutor();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10000);
+        // a couple of threads are enough as the handler only schedules the response
+        serverExecutor = Executors.newFixedThreadPool(2);
+        server.setExecutor(serverExecutor);
+        server.createContext("/buildByToken/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try (InputStream in = exchange.getRequestBody()) {
+                    IOUtils.toByteArray(in);
+                }
+                responder.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            exchange.getResponseHeaders().add("Location", "/queue/item/1/");
+                            exchange.sendResponseHeaders(201, -1);
+                        } catch (IOException e) {
+                            // the client gave up
+                        } finally {
+                            exchange.close();
+                        }
+                    }
+                }, HOLD_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.start();
+        endpoint = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/buildByToken/build");
+    }
+
+    @After
+    public void stopStub() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (responder != null) {
+            responder.shutdownNow();
+        }
+        if (serverExecutor != null) {
+            serverExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void compareExecutors() throws Exception {
+        System.out.printf("%-18s %8s %12s %14s %10s%n", "executor", "triggers", "peak threads", "peak heap MiB",
+                "millis");
+        for (int triggers : new int[]{1000, 10000}) {
+            run("thread-per-trigger", Executors.newCachedThreadPool(), triggers);
+            run("platform-pool", TriggerExecutors.newPlatformThreadExecutor(TriggerExecutors.POOL_SIZE), triggers);
+            ExecutorService virtual = TriggerExecutors.newVirtualThreadExecutor();
+            if (virtual != null) {
+                run("virtual", virtual, triggers);
+            }
+        }
+    }
+
+    private void run(String name, ExecutorService executor, int triggers) throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        threads.resetPeakThreadCount();
+        final AtomicLong peakHeap = new AtomicLong(memory.getHeapMemoryUsage().getUsed());
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(triggers);
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long used = memory.getHeapMemoryUsage().getUsed();
+                    if (used > peakHeap.get()) {
+                        peakHeap.set(used);
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < triggers; i++) {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (post() != 201) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            assertThat(done.await(10, TimeUnit.MINUTES), is(true));
+        } finally {
+            sampler.interrupt();
+            executor.shutdownNow();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("%-18s %8d %12d %14d %10d%n", name, triggers, threads.getPeakThreadCount(),
+                peakHeap.get() / (1024 * 1024), millis);
+        assertThat(name + " failures", failures.get(), is(0));
+    }
+
+    /**
+     * The same blocking request as {@link TriggerStep.Execution} sends, without taking an adaptive concurrency slot.
+     */
+    private int post() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            byte[] bytes = "job=benchmark&token=benchmark".getBytes(StandardCharsets.UTF_8);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            connection.setRequestProperty("Content-Length", Integer.toString(bytes.length));
+            connection.setUseCaches(false);
+            connection.setDoOutput(true);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(bytes);
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
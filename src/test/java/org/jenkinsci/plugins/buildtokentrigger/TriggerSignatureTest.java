@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ *
+ * Copyright(c) 2018, Stephen Connolly.
+ *
+ * Permission is hereby granted,free of charge,to any person obtaining a copy
+ * of this software and associated documentation files(the"Software"),to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use,copy,modify,merge,publish,distribute,sublicense,and/or sell
+ * copies of the Software,and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED"AS IS",WITHOUT WARRANTY OF ANY KIND,EXPRESS OR
+ * IMPLIED,INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,DAMAGES OR OTHER
+ * LIABILITY,WHETHER IN AN ACTION OF CONTRACT,TORT OR OTHERWISE,ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.buildtokentrigger;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.FreeStyleBuild;
+import hudson.util.Secret;
+import hudson.util.StreamTaskListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+public class TriggerSignatureTest {
+
+    private static final Set<String> RESERVED = new HashSet<>(Arrays.asList(
+            "job", "delay", "token", TriggerSignature.TIMESTAMP, TriggerSignature.NONCE, TriggerSignature.SIGNATURE
+    ));
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private HttpServer server;
+    private String jenkinsUrl;
+    private TriggerSignature.Verifier verifier;
+    private final AtomicReference<String> lastBody = new AtomicReference<>();
+
+    @Before
+    public void startStub() throws Exception {
+        verifier = new TriggerSignature.Verifier(Secret.fromString("s3cr3t"), 5, TimeUnit.MINUTES, 1000);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/buildByToken/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try (InputStream in = exchange.getRequestBody()) {
+                    String body = IOUtils.toString(in, "UTF-8");
+                    lastBody.set(body);
+                    if (verify(body)) {
+                        exchange.getResponseHeaders().add("Location", "/queue/item/1/");
+                        exchange.sendResponseHeaders(201, -1);
+                    } else {
+                        exchange.sendResponseHeaders(403, -1);
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        jenkinsUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        SystemCredentialsProvider.getInstance().getCredentials().add(
+                new TriggerCredentialsImpl(CredentialsScope.GLOBAL, "signed", null, jenkinsUrl, "s3cr3t"));
+        SystemCredentialsProvider.getInstance().save();
+    }
+
+    @After
+    public void stopStub() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private boolean verify(String body) throws IOException {
+        Map<String, String> form = new HashMap<>();
+        for (String pair : body.split("&")) {
+            int index = pair.indexOf('=');
+            form.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"),
+                    URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+        }
+        if (!form.containsKey(TriggerSignature.SIGNATURE) || form.containsKey("token")) {
+            return false;
+        }
+        Map<String, String> parameters = new TreeMap<>();
+        for (Map.Entry<String, String> entry : form.entrySet()) {
+            if (!RESERVED.contains(entry.getKey())) {
+                parameters.put(entry.getKey(), entry.getValue());
+            }
+        }
+        try {
+            return verifier.verify(
+                    form.get("job"),
+                    form.containsKey("delay") ? Integer.valueOf(form.get("delay")) : null,
+                    parameters,
+                    Long.parseLong(form.get(TriggerSignature.TIMESTAMP)),
+                    form.get(TriggerSignature.NONCE),
+                    form.get(TriggerSignature.SIGNATURE)
+            );
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private int post(String body) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(jenkinsUrl + "/buildByToken/buildWithParameters").openConnection();
+        try {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            connection.setDoOutput(true);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(bytes);
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private String trigger() throws Exception {
+        FreeStyleBuild run = r.buildAndAssertSuccess(r.createFreeStyleProject());
+        Map<String, String> parameters = new TreeMap<>();
+        parameters.put("version", "1.0 & up");
+        parameters.put("target", "production");
+        TriggerStep step = new TriggerStep(jenkinsUrl, "site/deploy", "signed", parameters, 5);
+        step.setSigned(true);
+        return TriggerStep.Execution.trigger(step, run, StreamTaskListener.fromStdout());
+    }
+
+    @Test
+    public void signedTriggerIsAcceptedWithoutSendingToken() throws Exception {
+        assertThat(trigger(), is(jenkinsUrl + "/queue/item/1/"));
+        assertThat(lastBody.get(), not(containsString("token=")));
+        assertThat(lastBody.get(), not(containsString("s3cr3t")));
+    }
+
+    @Test
+    public void replayIsRejected() throws Exception {
+        trigger();
+        assertThat(post(lastBody.get()), is(403));
+    }
+
+    @Test
+    public void tamperedParametersAreRejected() throws Exception {
+        Map<String, String> parameters = new TreeMap<>();
+        parameters.put("target", "staging");
+        long timestamp = System.currentTimeMillis();
+        String nonce = TriggerSignature.newNonce();
+        String signature = TriggerSignature.sign(Secret.fromString("s3cr3t"), "site/deploy", null, parameters,
+                timestamp, nonce);
+        parameters.put("target", "production");
+        assertThat(verifier.verify("site/deploy", null, parameters, timestamp, nonce, signature), is(false));
+    }
+
+    @Test
+    public void staleTimestampIsRejected() throws Exception {
+        Map<String, String> parameters = new TreeMap<>();
+        long timestamp = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10);
+        String nonce = TriggerSignature.newNonce();
+        String signature = TriggerSignature.sign(Secret.fromString("s3cr3t"), "site/deploy", null, parameters,
+                timestamp, nonce);
+        assertThat(verifier.verify("site/deploy", null, parameters, timestamp, nonce, signature), is(false));
+    }
+
+    @Test
+    public void fullNonceStoreRejectsRatherThanForgetting() throws Exception {
+        TriggerSignature.Verifier small =
+                new TriggerSignature.Verifier(Secret.fromString("s3cr3t"), 5, TimeUnit.MINUTES, 2);
+        Map<String, String> parameters = new TreeMap<>();
+        long timestamp = System.currentTimeMillis();
+        String first = TriggerSignature.newNonce();
+        String firstSignature =
+                TriggerSignature.sign(Secret.fromString("s3cr3t"), "job", null, parameters, timestamp, first);
+        assertThat(small.verify("job", null, parameters, timestamp, first, firstSignature), is(true));
+        for (int i = 0; i < 2; i++) {
+            String nonce = TriggerSignature.newNonce();
+            String signature =
+                    TriggerSignature.sign(Secret.fromString("s3cr3t"), "job", null, parameters, timestamp, nonce);
+            small.verify("job", null, parameters, timestamp, nonce, signature);
+        }
+        // the flood must not have evicted the first nonce
+        assertThat(small.verify("job", null, parameters, timestamp, first, firstSignature), is(false));
+    }
+}